@@ -0,0 +1,401 @@
+package shavadoop;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs complete jobs on a {@link LocalCluster} and reports how the job time,
+ * the time of each stage and the throughput vary with the number of slave
+ * hosts and the split size, so that changes to the scheduling or to the
+ * engine can be compared on a single machine.
+ *
+ * Each job runs the master in its own JVM, in a fresh directory, over the
+ * corpora given as arguments and over synthetic corpora sampled from their
+ * words. The benchmark is set up with the following system properties; the
+ * other "shavadoop.*" properties are passed on to the master, and the
+ * "shavadoop.sim.*" ones to the simulated hosts:
+ * <ul>
+ * <li>shavadoop.slave.jar: the slave jar (required);</li>
+ * <li>shavadoop.bench.slaves: the numbers of slave hosts, "1,2,4" by
+ * default;</li>
+ * <li>shavadoop.bench.splits: the split sizes, "auto" by default;</li>
+ * <li>shavadoop.bench.synthetic: the sizes of the synthetic corpora, in bytes,
+ * none by default;</li>
+ * <li>shavadoop.bench.repeat: the number of runs of each job, 1 by
+ * default;</li>
+ * <li>shavadoop.bench.seed: the seed of the synthetic corpora, 42 by
+ * default;</li>
+ * <li>shavadoop.bench.dir: the working directory, "bench" by default.</li>
+ * </ul>
+ * Unless shavadoop.sim.cores is set, the cores of the local machine are
+ * shared out between the simulated hosts of each job, so that adding hosts
+ * does not oversubscribe the machine; the cores of each host are
+ * reported. With a short shavadoop.refresh, the slots found by each re-probe
+ * of the hosts are reported too, and any change from the initial slots is
+ * flagged.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class Benchmark {
+	public static final String SLAVES = System.getProperty(
+			"shavadoop.bench.slaves", "1,2,4"); // the numbers of slave hosts
+	public static final String SPLITS = System.getProperty(
+			"shavadoop.bench.splits", Master.AUTO_SPLIT_SIZE); // the split
+																// sizes
+	public static final String SYNTHETIC = System.getProperty(
+			"shavadoop.bench.synthetic", ""); // the sizes of the synthetic
+												// corpora, in bytes
+	public static final int REPEAT = Integer.getInteger(
+			"shavadoop.bench.repeat", 1); // the number of runs of each job
+	public static final long SEED = Long.getLong("shavadoop.bench.seed",
+			42); // the seed of the synthetic corpora
+	public static final String DIR = System.getProperty("shavadoop.bench.dir",
+			"bench"); // the working directory
+	public static final int WORDS_PER_LINE = 12; // the number of words per
+													// line of the synthetic
+													// corpora
+	private static final Pattern STAGE_TIME = Pattern
+			.compile("^(\\S+) time: ([0-9.E-]+)$"); // a stage time printed by
+													// the master
+	private static final Pattern RESLOTS = Pattern
+			.compile("^Re-probed slots: (\\d+) "); // the slots printed by
+														// the master after a
+														// re-probe
+	private static final Pattern SLOTS = Pattern
+			.compile("^Reachable slots: (\\d+) "); // the slots printed by the
+													// master
+
+	/**
+	 * Main entry point.
+	 *
+	 * @param args
+	 *            the arguments: the report file followed by the corpora.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 * @throws InterruptedException
+	 *             if an interruption occurred.
+	 */
+	public static void main(final String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 2 || System.getProperty("shavadoop.slave.jar") == null) {
+			throw new IllegalArgumentException(
+					"Usage: -Dshavadoop.slave.jar=<slave-jar> Benchmark <report-file> <corpus>...");
+		}
+		new Benchmark(Paths.get(DIR)).run(Paths.get(args[0]),
+				Arrays.asList(args).subList(1, args.length));
+	}
+
+	/**
+	 * Deletes a directory and its content.
+	 *
+	 * @param dir
+	 *            the directory.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private static void deleteDirectory(final Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult postVisitDirectory(final Path d,
+					final IOException e) throws IOException {
+				if (e != null) {
+					throw e;
+				}
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file,
+					final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private final Path dir; // the working directory
+
+	private int runs = 0; // the number of jobs run so far
+
+	/**
+	 * Creates an instance of Benchmark.
+	 *
+	 * @param dir
+	 *            the working directory.
+	 */
+	Benchmark(final Path dir) {
+		this.dir = dir.toAbsolutePath();
+	}
+
+	/**
+	 * Generates a synthetic corpus, by sampling the words of the provided
+	 * corpora so that the words keep their frequencies.
+	 *
+	 * @param corpora
+	 *            the corpora.
+	 * @param size
+	 *            the size of the synthetic corpus, in bytes.
+	 * @return the synthetic corpus.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private Path generateCorpus(final List<Path> corpora, final long size)
+			throws IOException {
+		final Path corpus = dir.resolve("synthetic-" + size + ".txt");
+		if (Files.exists(corpus)) {
+			return corpus;
+		}
+		final List<String> words = new ArrayList<>();
+		for (final Path file : corpora) {
+			for (final String line : Files.readAllLines(file,
+					Charset.defaultCharset())) {
+				for (final String word : line.split("\\s+")) {
+					if (word.length() > 0) {
+						words.add(word);
+					}
+				}
+			}
+		}
+		if (words.isEmpty()) {
+			throw new IllegalArgumentException("No words to sample from");
+		}
+		final Random random = new Random(SEED);
+		final Path temp = Files.createTempFile(dir, corpus.getFileName()
+				.toString(), ".part");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp,
+				Charset.defaultCharset())) {
+			final StringBuilder line = new StringBuilder();
+			for (long bytes = 0; bytes < size;) {
+				line.setLength(0);
+				for (int i = 0; i < WORDS_PER_LINE; i++) {
+					if (i > 0) {
+						line.append(' ');
+					}
+					line.append(words.get(random.nextInt(words.size())));
+				}
+				writer.write(line.toString());
+				writer.newLine();
+				bytes += line.length() + 1; // approximated as one byte per char
+			}
+		}
+		Files.move(temp, corpus);
+		return corpus;
+	}
+
+	/**
+	 * Returns the number of cores reported by each simulated host.
+	 *
+	 * @param slaves
+	 *            the number of simulated slave hosts.
+	 * @return the shavadoop.sim.cores property if set, or else the cores of
+	 *         the local machine shared out between the hosts.
+	 */
+	private static int hostCores(final int slaves) {
+		return LocalCluster.CORES > 0 ? LocalCluster.CORES : Math.max(1,
+				Runtime.getRuntime().availableProcessors() / slaves);
+	}
+
+	/**
+	 * Returns the command running the master, with the remote shell replaced
+	 * by the simulated hosts.
+	 *
+	 * @param cores
+	 *            the number of cores reported by each simulated host.
+	 * @return the command, without the arguments of the master.
+	 */
+	private List<String> masterCommand(final int cores) {
+		final String java = Paths.get(System.getProperty("java.home"), "bin",
+				"java").toString();
+		final String classPath = System.getProperty("java.class.path");
+		final StringBuilder remoteShell = new StringBuilder(java);
+		final List<String> cmd = new ArrayList<>();
+		cmd.add(java);
+		for (final String name : System.getProperties().stringPropertyNames()) {
+			if ("shavadoop.sim.cores".equals(name)) {
+				continue;
+			} else if (name.startsWith("shavadoop.sim.")) {
+				remoteShell.append(" -D").append(name).append('=')
+						.append(System.getProperty(name));
+			} else if (name.startsWith("shavadoop.")
+					&& !name.startsWith("shavadoop.bench.")) {
+				cmd.add("-D" + name + "=" + System.getProperty(name));
+			}
+		}
+		remoteShell.append(" -Dshavadoop.sim.cores=").append(cores);
+		remoteShell.append(" -cp ").append(classPath)
+				.append(" shavadoop.LocalCluster");
+		cmd.add("-Dshavadoop.ssh=" + remoteShell);
+		cmd.add("-cp");
+		cmd.add(classPath);
+		cmd.add("shavadoop.Master");
+		return cmd;
+	}
+
+	/**
+	 * Runs all the jobs and writes the report.
+	 *
+	 * @param reportFile
+	 *            the report file.
+	 * @param corpora
+	 *            the pathnames of the corpora.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 * @throws InterruptedException
+	 *             if an interruption occurred.
+	 */
+	void run(final Path reportFile, final List<String> corpora)
+			throws IOException, InterruptedException {
+		Files.createDirectories(dir);
+		final List<Path> inputs = new ArrayList<>();
+		for (final String corpus : corpora) {
+			inputs.add(Paths.get(corpus).toAbsolutePath());
+		}
+		for (final String size : SYNTHETIC.split(",")) {
+			if (size.length() > 0) {
+				inputs.add(generateCorpus(inputs.subList(0, corpora.size()),
+						Long.parseLong(size)));
+			}
+		}
+		final List<String> report = new ArrayList<>();
+		report.add("corpus\tbytes\tslaves\tcores\tsplit\trun\tslots\treslots\tjob(s)\tsplit(s)\tmap(s)\treduce(s)\tassemble(s)\tMB/s");
+		System.out.println(report.get(0));
+		for (final Path input : inputs) {
+			for (final String slaves : SLAVES.split(",")) {
+				for (final String split : SPLITS.split(",")) {
+					for (int run = 1; run <= REPEAT; run++) {
+						final int cores = hostCores(Integer.parseInt(slaves));
+						final String line = input.getFileName() + "\t"
+								+ Files.size(input) + "\t" + slaves + "\t"
+								+ cores + "\t" + split + "\t" + run + "\t"
+								+ runJob(input, Integer.parseInt(slaves),
+										cores, split);
+						report.add(line);
+						System.out.println(line);
+					}
+				}
+			}
+		}
+		Files.write(reportFile, report, Charset.defaultCharset(),
+				new OpenOption[0]);
+	}
+
+	/**
+	 * Runs a job in a fresh directory, and returns its measures.
+	 *
+	 * @param input
+	 *            the input file.
+	 * @param slaves
+	 *            the number of simulated slave hosts.
+	 * @param cores
+	 *            the number of cores reported by each simulated host.
+	 * @param split
+	 *            the split size.
+	 * @return the measures, as the tab-separated slots, slots after each
+	 *         re-probe ("-" if none), job time, stage times and throughput,
+	 *         or the slots followed by "FAILED".
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 * @throws InterruptedException
+	 *             if an interruption occurred.
+	 */
+	private String runJob(final Path input, final int slaves,
+			final int cores, final String split) throws IOException,
+			InterruptedException {
+		final Path runDir = dir.resolve("run" + runs++);
+		Files.createDirectories(runDir);
+		final List<String> hosts = new ArrayList<>();
+		for (int i = 1; i <= slaves; i++) {
+			hosts.add("sim" + i);
+		}
+		Files.write(runDir.resolve("hosts"), hosts, Charset.defaultCharset(),
+				new OpenOption[0]);
+		final List<String> cmd = masterCommand(cores);
+		cmd.addAll(Arrays.asList("hosts", "status", input.toString(),
+				"output", split));
+		final ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.directory(runDir.toFile());
+		pb.redirectError(new File(runDir.toFile(), "log"));
+		final Process p = pb.start();
+		final Map<String, Double> times = new LinkedHashMap<>();
+		String slots = "?";
+		final StringBuilder reslots = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				p.getInputStream()))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final Matcher time = STAGE_TIME.matcher(line);
+				final Matcher slotCount = SLOTS.matcher(line);
+				final Matcher reslotCount = RESLOTS.matcher(line);
+				if (time.find()) {
+					times.put(time.group(1), Double.valueOf(time.group(2)));
+				} else if (slotCount.find()) {
+					slots = slotCount.group(1);
+				} else if (reslotCount.find()) {
+					reslots.append(reslots.length() > 0 ? "," : "").append(
+							reslotCount.group(1));
+					// The job must not shrink its own waves.
+					if (!reslotCount.group(1).equals(slots)) {
+						System.err.println("Slots changed from " + slots
+								+ " to " + reslotCount.group(1)
+								+ " after a re-probe, see "
+								+ runDir.resolve("log"));
+					}
+				}
+			}
+		}
+		if (p.waitFor() != 0 || !Files.exists(runDir.resolve("output"))) {
+			System.err.println("Job failed, see " + runDir.resolve("log"));
+			return slots + "\tFAILED";
+		}
+		double jobTime = 0;
+		for (final Map.Entry<String, Double> time : times.entrySet()) {
+			if (!"Pinging".equals(time.getKey())) {
+				jobTime += time.getValue();
+			}
+		}
+		deleteDirectory(runDir);
+		return String.format(Locale.ROOT,
+				"%s\t%s\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.2f", slots,
+				reslots.length() > 0 ? reslots : "-", jobTime,
+				value(times, "Splitting"), value(times, "Mapping"),
+				value(times, "Shuffle/reduce"), value(times, "Assembling"),
+				Files.size(input) / 1e6 / jobTime);
+	}
+
+	/**
+	 * Returns the time of a stage.
+	 *
+	 * @param times
+	 *            the mapping of stages to their time.
+	 * @param stage
+	 *            the stage.
+	 * @return the time of the stage, or 0 if it did not run.
+	 */
+	private double value(final Map<String, Double> times, final String stage) {
+		final Double time = times.get(stage);
+		return time == null ? 0 : time;
+	}
+
+}
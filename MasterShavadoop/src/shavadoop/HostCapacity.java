@@ -0,0 +1,115 @@
+package shavadoop;
+
+import java.util.List;
+
+/**
+ * Holds the capacity of a slave host, as reported by its health probe.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class HostCapacity {
+	public static final long MEMORY_PER_SLOT = 256L * 1024 * 1024; // the
+																	// memory
+																	// needed
+																	// by one
+																	// slave
+																	// process
+
+	/**
+	 * Parses the capacity of a slave host from the output of its "PING" or
+	 * "PROBE" command. A host that did not report its capacity is assumed to
+	 * have a single core.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param output
+	 *            the output of the probe.
+	 * @return the capacity of the slave host.
+	 */
+	static HostCapacity parse(final String host, final List<String> output) {
+		for (final String line : output) {
+			final String[] fields = line.split(" ");
+			if ("CAPACITY".equals(fields[0]) && fields.length == 4) {
+				try {
+					return new HostCapacity(host, Integer.parseInt(fields[1]),
+							Double.parseDouble(fields[2]),
+							Long.parseLong(fields[3]));
+				} catch (final NumberFormatException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return new HostCapacity(host, 1, -1, Long.MAX_VALUE);
+	}
+
+	private final int cores; // the number of cores
+
+	private final long freeMemory; // the free memory, in bytes
+
+	private final String host; // the slave host
+
+	private final double load; // the load average, negative if unknown
+
+	/**
+	 * Creates an instance of HostCapacity.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param cores
+	 *            the number of cores.
+	 * @param load
+	 *            the load average, negative if unknown.
+	 * @param freeMemory
+	 *            the free memory, in bytes.
+	 */
+	HostCapacity(final String host, final int cores, final double load,
+			final long freeMemory) {
+		this.host = host;
+		this.cores = cores;
+		this.load = load;
+		this.freeMemory = freeMemory;
+	}
+
+	/**
+	 * Returns the capacity of the slave host without the load of the tasks
+	 * the job itself ran on it, which the load average still accounts for
+	 * when the host is probed again.
+	 *
+	 * @param slots
+	 *            the number of slots given to the tasks of the job.
+	 * @return the capacity of the slave host, without the load of the job.
+	 */
+	HostCapacity withoutLoad(final int slots) {
+		return new HostCapacity(host, cores, load < 0 ? load : Math.max(0,
+				load - slots), freeMemory);
+	}
+
+	/**
+	 * Returns the slave host.
+	 *
+	 * @return the slave host.
+	 */
+	String getHost() {
+		return host;
+	}
+
+	/**
+	 * Returns the number of tasks the slave host may run concurrently: its
+	 * idle cores, bounded by its free memory, and at least one.
+	 *
+	 * @return the number of slots.
+	 */
+	int getSlots() {
+		final long idleCores = Math.round(cores - Math.max(load, 0));
+		final long memorySlots = freeMemory / MEMORY_PER_SLOT;
+		return (int) Math.max(1, Math.min(idleCores, memorySlots));
+	}
+
+	@Override
+	public String toString() {
+		return host + " [cores=" + cores + ", load=" + load + ", freeMemory="
+				+ freeMemory / (1024 * 1024) + "MB, slots=" + getSlots() + "]";
+	}
+
+}
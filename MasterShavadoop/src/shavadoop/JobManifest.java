@@ -0,0 +1,411 @@
+package shavadoop;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Durable record of the progress of a job, used to resume it after a failure
+ * of the master.
+ *
+ * The manifest is a directory holding an append-only log, one segment file per
+ * completed map task, named after the first split of its batch, and one
+ * output file per completed reduce partition. Each log record is a single
+ * tab-separated line written and synced in one call, so that a crash can at
+ * most truncate the last record, which is then ignored on reload. A stage is
+ * only considered complete once its "STAGE" record has been committed. A map
+ * task whose host was lost, along with its map files, is cancelled by an
+ * "UNMAP" record.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class JobManifest {
+	private static final String LOG_FILE = "manifest";
+	private static final String SEGMENTS_SUFFIX = ".segments";
+	private static final String OUTPUT_SUFFIX = ".out";
+	private static final OpenOption[] APPEND = new OpenOption[] {
+			StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+			StandardOpenOption.DSYNC };
+
+	/**
+	 * Opens the manifest of the specified job, resuming from its previous
+	 * content if it was written for the same job, or starting a new one
+	 * otherwise.
+	 *
+	 * @param dir
+	 *            the directory holding the manifest.
+	 * @param job
+	 *            a description of the job parameters; a manifest written for
+	 *            different parameters is discarded.
+	 * @return the manifest.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	static JobManifest open(final Path dir, final String job)
+			throws IOException {
+		final JobManifest manifest = new JobManifest(dir, job);
+		if (!manifest.load()) {
+			manifest.delete();
+			Files.createDirectories(dir);
+			manifest.append("JOB", job);
+		}
+		return manifest;
+	}
+
+	private final Path dir; // the manifest directory
+
+	private final String job; // the description of the job parameters
+
+	private Map<String, Integer> splits = null; // the committed split files
+												// and their source
+
+	private int partitions = 0; // the number of reduce partitions
+
+	private boolean mapStageCommitted = false; // whether all map tasks
+												// completed
+
+	private final Map<String, String> mapBatches = new LinkedHashMap<>(); // batch -> host
+
+	private final Map<String, List<String>> batchSplits = new HashMap<>(); // batch -> split files
+
+	private final Set<String> mappedSplits = new HashSet<>(); // the mapped
+																// split files
+
+	private final Map<Integer, String> reducedPartitions = new LinkedHashMap<>(); // partition -> host
+
+	/**
+	 * Creates an instance of JobManifest.
+	 *
+	 * @param dir
+	 *            the manifest directory.
+	 * @param job
+	 *            the description of the job parameters.
+	 */
+	private JobManifest(final Path dir, final String job) {
+		this.dir = dir;
+		this.job = job;
+	}
+
+	/**
+	 * Appends a record to the log.
+	 *
+	 * @param fields
+	 *            the fields of the record.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void append(final String... fields) throws IOException {
+		final StringBuilder record = new StringBuilder();
+		for (final String field : fields) {
+			if (record.length() > 0) {
+				record.append('\t');
+			}
+			record.append(field);
+		}
+		record.append('\n');
+		Files.write(dir.resolve(LOG_FILE),
+				record.toString().getBytes(Charset.defaultCharset()), APPEND);
+	}
+
+	/**
+	 * Records the completion of a map task along with the segments of map
+	 * file it produced.
+	 *
+	 * @param splits
+	 *            the batch of split files processed by the task.
+	 * @param host
+	 *            the slave host that ran the task.
+	 * @param output
+	 *            the output of the task, as "&lt;partition&gt;
+	 *            &lt;segment&gt;" lines.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void commitMap(final List<String> splits, final String host,
+			final List<String> output) throws IOException {
+		final String batch = splits.get(0);
+		Files.write(dir.resolve(batch + SEGMENTS_SUFFIX), output,
+				Charset.defaultCharset(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DSYNC);
+		final StringBuilder field = new StringBuilder();
+		for (final String split : splits) {
+			if (field.length() > 0) {
+				field.append(',');
+			}
+			field.append(split);
+		}
+		append("MAP", field.toString(), host);
+		mapBatches.put(batch, host);
+		batchSplits.put(batch, new ArrayList<>(splits));
+		mappedSplits.addAll(splits);
+	}
+
+	/**
+	 * Records the completion of the whole map stage.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void commitMapStage() throws IOException {
+		append("STAGE", "MAP");
+		mapStageCommitted = true;
+	}
+
+	/**
+	 * Records the completion of a reduce partition. Ignored while the map
+	 * stage is not committed, as the result may then be missing some of the
+	 * map outputs.
+	 *
+	 * @param partition
+	 *            the partition.
+	 * @param host
+	 *            the slave host that ran the task.
+	 * @param output
+	 *            the output of the task.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void commitReduce(final int partition, final String host,
+			final List<String> output) throws IOException {
+		if (mapStageCommitted) {
+			Files.write(dir.resolve("RM" + partition + OUTPUT_SUFFIX), output,
+					Charset.defaultCharset(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.DSYNC);
+			append("REDUCE", String.valueOf(partition), host);
+			reducedPartitions.put(partition, host);
+		}
+	}
+
+	/**
+	 * Records the list of split files and the number of reduce partitions,
+	 * which must not change once some map files are written.
+	 *
+	 * @param splits
+	 *            the mapping of the split files to their source, the index of
+	 *            the input they come from.
+	 * @param partitions
+	 *            the number of reduce partitions.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void commitSplits(final Map<String, Integer> splits, final int partitions)
+			throws IOException {
+		for (final Map.Entry<String, Integer> split : splits.entrySet()) {
+			append("SPLIT", split.getKey(), String.valueOf(split.getValue()));
+		}
+		append("PARTITIONS", String.valueOf(partitions));
+		append("STAGE", "SPLIT");
+		this.splits = new LinkedHashMap<>(splits);
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Deletes the manifest, typically once the job has completed.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void delete() throws IOException {
+		if (Files.isDirectory(dir)) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (final Path file : files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Forgets the map tasks run on the slave hosts which are no longer
+	 * reachable, and whose map files are lost with them, so that their batches
+	 * are mapped again; the map stage is then no longer complete.
+	 *
+	 * @param hosts
+	 *            the reachable slave hosts.
+	 * @return the forgotten batches.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	List<String> forgetMaps(final Collection<String> hosts) throws IOException {
+		final List<String> batches = new ArrayList<>();
+		for (final Map.Entry<String, String> entry : mapBatches.entrySet()) {
+			if (!hosts.contains(entry.getValue())) {
+				batches.add(entry.getKey());
+			}
+		}
+		for (final String batch : batches) {
+			append("UNMAP", batch);
+			Files.deleteIfExists(dir.resolve(batch + SEGMENTS_SUFFIX));
+			unmap(batch);
+		}
+		return batches;
+	}
+
+	/**
+	 * Returns the outputs of the completed map tasks, as recorded in their
+	 * segment files.
+	 *
+	 * @return a mapping of slave hosts to the "&lt;partition&gt;
+	 *         &lt;segment&gt;" lines they emitted.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	Map<String, List<String>> getMapOutputs() throws IOException {
+		final Map<String, List<String>> results = new HashMap<>();
+		for (final Map.Entry<String, String> entry : mapBatches.entrySet()) {
+			final String host = entry.getValue();
+			if (!results.containsKey(host)) {
+				results.put(host, new ArrayList<String>());
+			}
+			results.get(host).addAll(
+					Files.readAllLines(
+							dir.resolve(entry.getKey() + SEGMENTS_SUFFIX),
+							Charset.defaultCharset()));
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the number of reduce partitions.
+	 *
+	 * @return the number of partitions.
+	 */
+	int getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * Returns the outputs of the completed reduce partitions.
+	 *
+	 * @return a mapping of partitions to their output.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	Map<Integer, List<String>> getReduceOutputs() throws IOException {
+		final Map<Integer, List<String>> results = new HashMap<>();
+		for (final Integer partition : reducedPartitions.keySet()) {
+			results.put(partition, Files.readAllLines(
+					dir.resolve("RM" + partition + OUTPUT_SUFFIX),
+					Charset.defaultCharset()));
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the committed split files.
+	 *
+	 * @return the mapping of the split files to their source, or null if the
+	 *         split stage was not committed.
+	 */
+	Map<String, Integer> getSplits() {
+		return splits == null ? null : Collections.unmodifiableMap(splits);
+	}
+
+	/**
+	 * Returns whether the specified split file was already mapped.
+	 *
+	 * @param split
+	 *            the split file.
+	 * @return true if its map task completed.
+	 */
+	boolean isMapped(final String split) {
+		return mappedSplits.contains(split);
+	}
+
+	/**
+	 * Returns whether the specified partition was already reduced.
+	 *
+	 * @param partition
+	 *            the partition.
+	 * @return true if its reduce task completed.
+	 */
+	boolean isReduced(final int partition) {
+		return reducedPartitions.containsKey(partition);
+	}
+
+	/**
+	 * Removes a batch from the completed map tasks.
+	 *
+	 * @param batch
+	 *            the batch, named after its first split file.
+	 */
+	private void unmap(final String batch) {
+		mapBatches.remove(batch);
+		final List<String> splits = batchSplits.remove(batch);
+		if (splits != null) {
+			mappedSplits.removeAll(splits);
+		}
+		mapStageCommitted = false;
+	}
+
+	/**
+	 * Reloads the manifest from its log.
+	 *
+	 * @return true if a manifest for the same job was found.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private boolean load() throws IOException {
+		final Path log = dir.resolve(LOG_FILE);
+		if (!Files.isRegularFile(log)) {
+			return false;
+		}
+		final String content = new String(Files.readAllBytes(log),
+				Charset.defaultCharset());
+		final List<String> records = new ArrayList<>(Arrays.asList(content
+				.split("\n", -1)));
+		// The last element is empty unless the last record was truncated.
+		if (!records.remove(records.size() - 1).isEmpty()) {
+			Files.write(log, content.substring(0, content.lastIndexOf('\n') + 1)
+					.getBytes(Charset.defaultCharset()),
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.DSYNC);
+		}
+		if (records.isEmpty() || !records.get(0).equals("JOB\t" + job)) {
+			return false;
+		}
+		final Map<String, Integer> pendingSplits = new LinkedHashMap<>();
+		for (final String record : records.subList(1, records.size())) {
+			final String[] fields = record.split("\t", -1);
+			if ("SPLIT".equals(fields[0]) && fields.length == 3) {
+				pendingSplits.put(fields[1], Integer.valueOf(fields[2]));
+			} else if ("MAP".equals(fields[0]) && fields.length == 3) {
+				final List<String> splits = Arrays.asList(fields[1].split(","));
+				mapBatches.put(splits.get(0), fields[2]);
+				batchSplits.put(splits.get(0), splits);
+				mappedSplits.addAll(splits);
+			} else if ("UNMAP".equals(fields[0]) && fields.length == 2) {
+				unmap(fields[1]);
+			} else if ("PARTITIONS".equals(fields[0]) && fields.length == 2) {
+				partitions = Integer.parseInt(fields[1]);
+			} else if ("REDUCE".equals(fields[0]) && fields.length == 3) {
+				reducedPartitions.put(Integer.parseInt(fields[1]), fields[2]);
+			} else if ("STAGE".equals(fields[0]) && fields.length == 2) {
+				if ("SPLIT".equals(fields[1])) {
+					splits = new LinkedHashMap<>(pendingSplits);
+				} else if ("MAP".equals(fields[1])) {
+					mapStageCommitted = true;
+				}
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,347 @@
+package shavadoop;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the timeline of a job as spans: the stages of the master, and for
+ * each task run on a slave host, the upload of its files, the connection to
+ * the host, the start of the JVM of the slave and the phases reported by the
+ * slave as "TRACE &lt;start&gt; &lt;duration&gt; &lt;name&gt;" lines (in
+ * microseconds, on the clock of the slave host). The timeline is exported in
+ * the Chrome trace-event format, one process per host and one thread per
+ * concurrent task, along with the idle gaps of each host between its first
+ * and last task; it can be opened in chrome://tracing or Perfetto. Nothing is
+ * recorded unless the "shavadoop.trace" property is set, which the master
+ * forwards to the slaves.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+final class JobTrace {
+	public static final String MASTER = "master"; // the host of the spans of
+													// the master
+
+	private static final long EPOCH_OFFSET = System.currentTimeMillis()
+			* 1000 - System.nanoTime() / 1000; // the offset from the
+												// monotonic clock to the epoch,
+												// in microseconds
+
+	private static final List<Span> spans = Collections
+			.synchronizedList(new ArrayList<Span>()); // the recorded spans
+
+	private static final AtomicInteger tasks = new AtomicInteger(); // the
+																	// number of
+																	// tasks
+
+	/**
+	 * Records a span, if the timeline is exported.
+	 *
+	 * @param host
+	 *            the host the span ran on.
+	 * @param task
+	 *            the task the span belongs to, or 0 for the master.
+	 * @param category
+	 *            the category of the span.
+	 * @param name
+	 *            the name of the span.
+	 * @param start
+	 *            the start of the span, in microseconds since the epoch.
+	 * @param end
+	 *            the end of the span, in microseconds since the epoch.
+	 */
+	static void add(final String host, final int task, final String category,
+			final String name, final long start, final long end) {
+		if (!Master.TRACE) {
+			return;
+		}
+		spans.add(new Span(host, task, category, name, start, Math.max(start,
+				end)));
+	}
+
+	/**
+	 * Records a span reported by a slave.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param task
+	 *            the task the slave runs.
+	 * @param line
+	 *            the "TRACE &lt;start&gt; &lt;duration&gt; &lt;name&gt;" line.
+	 */
+	static void addSlaveSpan(final String host, final int task,
+			final String line) {
+		final String[] fields = line.split(" ", 4);
+		final long start = Long.parseLong(fields[1]);
+		add(host, task, "slave", fields[3], start,
+				start + Long.parseLong(fields[2]));
+	}
+
+	/**
+	 * Records a stage of the master.
+	 *
+	 * @param name
+	 *            the name of the stage.
+	 * @param startTime
+	 *            the start of the stage, in ms since the epoch.
+	 * @param endTime
+	 *            the end of the stage, in ms since the epoch.
+	 */
+	static void addStage(final String name, final long startTime,
+			final long endTime) {
+		add(MASTER, 0, "stage", name, startTime * 1000, endTime * 1000);
+	}
+
+	/**
+	 * Exports the recorded spans in the Chrome trace-event format. Each host
+	 * is a process; the spans of a host are laid out on threads ("lanes") so
+	 * that the spans of a lane are either disjoint or nested in a span of the
+	 * same task. The connection to a slave host is the gap between the launch
+	 * of a task and the start of the JVM of the slave.
+	 *
+	 * @param file
+	 *            the trace file.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	static void export(final Path file) throws IOException {
+		final List<Span> events;
+		synchronized (spans) {
+			events = new ArrayList<>(spans);
+		}
+		events.addAll(connectSpans(events));
+		events.addAll(idleSpans(events));
+		Collections.sort(events, new Comparator<Span>() {
+			@Override
+			public int compare(final Span span1, final Span span2) {
+				final int order = Long.compare(span1.start, span2.start);
+				return order != 0 ? order : Long.compare(span2.end, span1.end);
+			}
+		});
+		final long origin = events.isEmpty() ? 0 : events.get(0).start;
+		final Map<String, Integer> pids = new LinkedHashMap<>();
+		pids.put(MASTER, 0);
+		final Map<String, List<Deque<Span>>> lanes = new HashMap<>();
+		try (BufferedWriter writer = Files.newBufferedWriter(file,
+				StandardCharsets.UTF_8)) {
+			writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+			String separator = "\n";
+			for (final Span span : events) {
+				if (!pids.containsKey(span.host)) {
+					pids.put(span.host, pids.size());
+				}
+				if (!lanes.containsKey(span.host)) {
+					lanes.put(span.host, new ArrayList<Deque<Span>>());
+				}
+				writer.write(separator + "{\"name\":" + quote(span.name)
+						+ ",\"cat\":" + quote(span.category)
+						+ ",\"ph\":\"X\",\"ts\":" + (span.start - origin)
+						+ ",\"dur\":" + (span.end - span.start) + ",\"pid\":"
+						+ pids.get(span.host) + ",\"tid\":"
+						+ lane(lanes.get(span.host), span) + "}");
+				separator = ",\n";
+			}
+			for (final Map.Entry<String, Integer> pid : pids.entrySet()) {
+				writer.write(separator
+						+ "{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":"
+						+ pid.getValue() + ",\"args\":{\"name\":"
+						+ quote(pid.getKey()) + "}},\n"
+						+ "{\"name\":\"process_sort_index\",\"ph\":\"M\","
+						+ "\"pid\":" + pid.getValue()
+						+ ",\"args\":{\"sort_index\":" + pid.getValue() + "}}");
+				separator = ",\n";
+			}
+			writer.write("\n]}\n");
+		}
+	}
+
+	/**
+	 * Returns the spans of the connections to the slave hosts: from the
+	 * launch of each task to the start of the JVM of its slave.
+	 *
+	 * @param events
+	 *            the recorded spans.
+	 * @return the connection spans.
+	 */
+	private static List<Span> connectSpans(final List<Span> events) {
+		final Map<Integer, Span> launches = new HashMap<>();
+		for (final Span span : events) {
+			if ("task".equals(span.category)
+					|| "service".equals(span.category)) {
+				launches.put(span.task, span);
+			}
+		}
+		final List<Span> connects = new ArrayList<>();
+		for (final Span span : events) {
+			final Span launch = launches.get(span.task);
+			if ("slave".equals(span.category) && "jvm".equals(span.name)
+					&& launch != null && span.start > launch.start) {
+				connects.add(new Span(span.host, span.task, "connect",
+						"connect", launch.start, span.start));
+			}
+		}
+		return connects;
+	}
+
+	/**
+	 * Returns the idle gaps of each slave host, when none of its tasks runs
+	 * or receives its files between the first and the last of them.
+	 *
+	 * @param events
+	 *            the recorded spans.
+	 * @return the idle spans.
+	 */
+	private static List<Span> idleSpans(final List<Span> events) {
+		final Map<String, List<Span>> hostTasks = new HashMap<>();
+		for (final Span span : events) {
+			if ("task".equals(span.category)
+					|| "upload".equals(span.category)) {
+				if (!hostTasks.containsKey(span.host)) {
+					hostTasks.put(span.host, new ArrayList<Span>());
+				}
+				hostTasks.get(span.host).add(span);
+			}
+		}
+		final List<Span> idles = new ArrayList<>();
+		for (final List<Span> taskSpans : hostTasks.values()) {
+			Collections.sort(taskSpans, new Comparator<Span>() {
+				@Override
+				public int compare(final Span span1, final Span span2) {
+					return Long.compare(span1.start, span2.start);
+				}
+			});
+			long busyUntil = taskSpans.get(0).end;
+			for (final Span span : taskSpans) {
+				if (span.start > busyUntil) {
+					idles.add(new Span(span.host, -1, "idle", "idle",
+							busyUntil, span.start));
+				}
+				busyUntil = Math.max(busyUntil, span.end);
+			}
+		}
+		return idles;
+	}
+
+	/**
+	 * Assigns a span to the first lane of its host where it is either
+	 * disjoint from the spans still open, or nested in the innermost of them,
+	 * of the same task. The spans must be assigned by increasing start, and
+	 * by decreasing end for the same start.
+	 *
+	 * @param lanes
+	 *            the lanes of the host, as the stacks of their open spans.
+	 * @param span
+	 *            the span.
+	 * @return the index of the lane.
+	 */
+	private static int lane(final List<Deque<Span>> lanes, final Span span) {
+		for (int i = 0; i < lanes.size(); i++) {
+			final Deque<Span> open = lanes.get(i);
+			while (!open.isEmpty() && open.peek().end <= span.start) {
+				open.pop();
+			}
+			if (open.isEmpty()
+					|| (open.peek().task == span.task && span.end <= open
+							.peek().end)) {
+				open.push(span);
+				return i;
+			}
+		}
+		final Deque<Span> open = new ArrayDeque<>();
+		open.push(span);
+		lanes.add(open);
+		return lanes.size() - 1;
+	}
+
+	/**
+	 * Starts a new task.
+	 *
+	 * @return the identifier of the task.
+	 */
+	static int newTask() {
+		return tasks.incrementAndGet();
+	}
+
+	/**
+	 * Returns the current time.
+	 *
+	 * @return the current time, in microseconds since the epoch.
+	 */
+	static long now() {
+		return EPOCH_OFFSET + System.nanoTime() / 1000;
+	}
+
+	/**
+	 * Quotes a string as a JSON string.
+	 *
+	 * @param s
+	 *            the string.
+	 * @return the JSON string.
+	 */
+	private static String quote(final String s) {
+		final StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < ' ') {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * A span of the timeline.
+	 */
+	private static final class Span {
+		final String category; // the category of the span
+		final long end; // the end of the span, in microseconds since the epoch
+		final String host; // the host the span ran on
+		final String name; // the name of the span
+		final long start; // the start of the span, in microseconds since the epoch
+		final int task; // the task the span belongs to
+
+		/**
+		 * Creates an instance of Span.
+		 *
+		 * @param host
+		 *            the host the span ran on.
+		 * @param task
+		 *            the task the span belongs to.
+		 * @param category
+		 *            the category of the span.
+		 * @param name
+		 *            the name of the span.
+		 * @param start
+		 *            the start of the span, in microseconds since the epoch.
+		 * @param end
+		 *            the end of the span, in microseconds since the epoch.
+		 */
+		Span(final String host, final int task, final String category,
+				final String name, final long start, final long end) {
+			this.host = host;
+			this.task = task;
+			this.category = category;
+			this.name = name;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package shavadoop;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simulates a cluster of slave hosts on the local machine, by standing in for
+ * the remote shell of the master: with
+ * -Dshavadoop.ssh="java -cp &lt;master classes&gt; shavadoop.LocalCluster",
+ * every command the master runs "on" a slave host is run as a local process
+ * instead, whatever the host name. The slave hosts can be made less regular
+ * than the local machine through the following properties, which must be
+ * given in the remote shell command:
+ * <ul>
+ * <li>shavadoop.sim.latency: the delay before each command starts, in ms, as
+ * the connection to a remote host would take;</li>
+ * <li>shavadoop.sim.slowdown: "&lt;host&gt;:&lt;factor&gt;,..." to make the
+ * commands of a host take factor times as long;</li>
+ * <li>shavadoop.sim.cores: the number of cores reported by each host, instead
+ * of those of the local machine, which all the simulated hosts share; the load
+ * average of the local machine is then reported in proportion.</li>
+ * </ul>
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class LocalCluster {
+	public static final long LATENCY = Long.getLong(
+			"shavadoop.sim.latency", 0); // the delay before each command, in
+											// ms
+	public static final int CORES = Integer.getInteger(
+			"shavadoop.sim.cores", 0); // the number of cores reported by each
+										// host, or 0 for the real ones
+
+	/**
+	 * Main entry point.
+	 *
+	 * @param args
+	 *            the arguments, as given to the remote shell: the slave host
+	 *            followed by the command to run on it.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 * @throws InterruptedException
+	 *             if an interruption occurred.
+	 */
+	public static void main(final String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 2) {
+			throw new IllegalArgumentException(
+					"Usage: LocalCluster <host> <command>...");
+		}
+		System.exit(run(args[0], Arrays.asList(args).subList(1, args.length)));
+	}
+
+	/**
+	 * Parses the slowdown factors of the simulated hosts.
+	 *
+	 * @param slowdowns
+	 *            the factors, as "&lt;host&gt;:&lt;factor&gt;,...".
+	 * @return a mapping of hosts to their slowdown factor.
+	 */
+	private static Map<String, Double> parseSlowdowns(final String slowdowns) {
+		final Map<String, Double> factors = new HashMap<>();
+		if (slowdowns != null && !slowdowns.isEmpty()) {
+			for (final String slowdown : slowdowns.split(",")) {
+				final int separator = slowdown.lastIndexOf(':');
+				factors.put(slowdown.substring(0, separator),
+						Double.valueOf(slowdown.substring(separator + 1)));
+			}
+		}
+		return factors;
+	}
+
+	/**
+	 * Runs a command as the specified simulated host: waits for the latency,
+	 * runs the command locally while relaying its output, and then waits for
+	 * the slowdown of the host.
+	 *
+	 * @param host
+	 *            the simulated host.
+	 * @param command
+	 *            the command.
+	 * @return the exit status of the command.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 * @throws InterruptedException
+	 *             if an interruption occurred.
+	 */
+	private static int run(final String host, final List<String> command)
+			throws IOException, InterruptedException {
+		Thread.sleep(LATENCY);
+		final long startTime = System.currentTimeMillis();
+		final ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectError(Redirect.INHERIT);
+		final Process p = pb.start();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				p.getInputStream()))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (CORES > 0 && line.startsWith("CAPACITY ")) {
+					// The simulated hosts share the local cores, and their
+					// load.
+					final String[] fields = line.split(" ");
+					final double load = Double.parseDouble(fields[2]);
+					line = "CAPACITY "
+							+ CORES
+							+ " "
+							+ (load < 0 ? load : load * CORES
+									/ Runtime.getRuntime().availableProcessors())
+							+ " " + fields[3];
+				}
+				System.out.println(line);
+			}
+		}
+		final int status = p.waitFor();
+		final Double factor = parseSlowdowns(
+				System.getProperty("shavadoop.sim.slowdown")).get(host);
+		if (factor != null && factor > 1) {
+			Thread.sleep((long) ((factor - 1) * (System
+					.currentTimeMillis() - startTime)));
+		}
+		System.out.flush();
+		return status;
+	}
+
+}
@@ -1,20 +1,23 @@
 package shavadoop;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.PriorityQueue;
 
 /**
  * Implements the Shavadoop master.
@@ -26,7 +29,68 @@ public class Master {
 	// whether local execution of
 	// slaves is turned on (for
 	// debugging)
-	public static final int TASKS_PER_SLAVE = 1;
+	public static final int TASKS_PER_SLAVE = 1; // the number of tasks per
+													// slot of a slave host in
+													// each wave
+	public static final String AUTO_SPLIT_SIZE = "auto"; // the split size
+															// chosen from the
+															// input and
+															// cluster sizes
+	public static final boolean TRANSFER = Boolean
+			.getBoolean("shavadoop.transfer"); // whether the slave hosts do
+												// not share the filesystem of
+												// the master and exchange
+												// files through their transfer
+												// service
+	public static final int TRANSFER_PORT = Integer.getInteger(
+			"shavadoop.transfer.port", 7777); // the port of the transfer
+												// service of the first slave
+												// host, the next ones using
+												// the following ports
+	public static final String TRANSFER_DIR = System.getProperty(
+			"shavadoop.transfer.dir", "/tmp/shavadoop"); // the local directory
+															// of the slave
+															// hosts
+	public static final long QUIT_TIMEOUT = 10000; // the delay to wait for
+													// the transfer services to
+													// stop, in ms
+	public static final boolean APPROXIMATE = "approximate".equals(System
+			.getProperty("shavadoop.mode")); // whether to estimate the top
+												// words from sketches instead
+												// of counting all the words
+	public static final int TOP_WORDS = Integer.getInteger("shavadoop.top",
+			50); // the number of words reported in approximate mode
+	public static final String JOB = System.getProperty("shavadoop.job",
+			"wordcount"); // the name of the job run by the slaves
+	public static final int REDUCERS = Integer.getInteger(
+			"shavadoop.reducers", 0); // the number of reduce partitions, or
+										// 0 for one per slot of the cluster
+	public static final int OUTPUT_LIMIT = Integer.getInteger(
+			"shavadoop.limit", 0); // the number of lines of the result to
+									// write, or 0 for all of them
+	public static final String OUTPUT_SUFFIX = "-output.txt"; // suffix of
+																// the output
+																// file of each
+																// input of a
+																// batch
+	public static final String MANIFEST_SUFFIX = ".job"; // suffix of the job
+															// manifest
+															// directory, next
+															// to the output
+															// file
+	public static final boolean TRACE = Boolean
+			.getBoolean("shavadoop.trace"); // whether to export the timeline
+											// of the job
+	public static final String TRACE_SUFFIX = ".trace.json"; // suffix of the
+																// timeline
+																// file, next
+																// to the output
+																// file
+	public static final String ARTIFACT_PATTERN = "(S|UM|RM)[0-9]+"; // the
+																		// names of
+																		// the split,
+																		// map and
+																		// reduce files
 
 
 	/**
@@ -34,21 +98,44 @@ public class Master {
 	 *
 	 * @param args
 	 *            the arguments, in order: the slave host file, the remote host
-	 *            status file and the input file,
+	 *            status file, the input file, the output file and optionally
+	 *            the split size, either as a number of lines or "auto" (the
+	 *            default) to size the splits after the input file and the
+	 *            cluster. The input file may also be a batch of input files,
+	 *            as a comma-separated list or a glob pattern on file names;
+	 *            the output file then receives the total of the batch, and
+	 *            each input file gets its own "&lt;name&gt;-output.txt".
 	 * @throws IOException
 	 *             if any I/O error occurred.
 	 */
 	public static void main(final String[] args) throws IOException {
-		if (args.length < 3) {
+		if (args.length < 4) {
 			throw new IllegalArgumentException(
-					"Usage: <remote-hosts-file> <remote-host-status-file> <input-file> [<split-size>]");
+					"Usage: <remote-hosts-file> <remote-host-status-file> <input-file>[,<input-file>...|<glob>] <output-file> [<split-size>|auto]");
 		}
 		new Master(args[0], args[1], args[2], args[3],
-				args.length > 4 ? Integer.parseInt(args[4]) : 1);
+				args.length > 4 ? args[4] : AUTO_SPLIT_SIZE);
 	}
 
 	private final List<String> reachableSlaves; // the list of reachable slave
 												// hosts
+	private List<Path> inputs; // the input files of the job
+	private final List<Path> jobFiles = new ArrayList<>(); // the files the
+															// job reads or
+															// writes, which
+															// never match an
+															// input pattern
+	private Map<String, Integer> Sx_sources; // the mapping of split files to
+												// the index of their input
+	private boolean rankOrder; // whether the results are sorted by decreasing
+								// rank rather than by key
+	private JobManifest manifest; // the durable record of the job progress
+	private Scheduler scheduler; // the capacity-weighted task scheduler
+	private final Map<String, Integer> transferPorts = new HashMap<>(); // host -> port
+	private final List<SlaveThread> serveThreads = new ArrayList<>(); // the transfer services
+	private final String transferToken = TRANSFER ? TransferClient
+			.newToken() : null; // the token of the job, which the transfer
+								// services require in every request
 	private Map<String, String> RMx_machines; // the mapping of RMx files to
 												// slave hosts
 	private Map<String, String> UMx_machines; // the mapping of UMx files to
@@ -64,12 +151,20 @@ public class Master {
 	 *            the pathname of the file to write the slave machine status to.
 	 * @param inputFile
 	 *            the input file to process.
+	 * @param outputFile
+	 *            the file to write the word counts to.
+	 * @param size
+	 *            the number of lines per split, or "auto".
 	 * @throws IOException
 	 *             if any I/O error occurred.
 	 */
 	Master(final String slaveHostsFile, final String slaveHostsStatusFile,
-			final String inputFile, final String outputFile, final int size)
+			final String inputFile, final String outputFile, final String size)
 			throws IOException {
+		for (final String file : Arrays.asList(slaveHostsFile,
+				slaveHostsStatusFile, outputFile, outputFile + TRACE_SUFFIX)) {
+			jobFiles.add(Paths.get(file).toAbsolutePath().normalize());
+		}
 		{
 			System.out.println("Pinging slaves...");
 			//Starting counting time
@@ -78,60 +173,153 @@ public class Master {
 			reachableSlaves = pingSlaves(hosts, slaveHostsStatusFile);
 			// end time
 			long endTime = System.currentTimeMillis();
+			JobTrace.addStage("Pinging", startTime, endTime);
 			//calculating total duration
 			double totalTime = endTime - startTime;
 			System.out.println("Pinging time: " + totalTime / 1000);
+			System.out.println("Reachable slots: " + scheduler.getTotalSlots()
+					+ " on " + reachableSlaves.size() + " hosts");
 		}
 		if (reachableSlaves.size() > 0) {
-			List<String> Sx;
-			{
-				System.out.println("Splitting input file...");
-				long startTime = System.currentTimeMillis();
-				Sx = splitInputFile(inputFile, size);
-				long endTime = System.currentTimeMillis();
-				double totalTime = endTime - startTime;
-				System.out.println(Sx.toString());
-				System.out.println("Splitting time: " + totalTime / 1000);
+			try {
+				if (TRANSFER) {
+					System.out.println("Starting transfer services...");
+					startTransferServices();
+				}
+				runJob(inputFile, outputFile, size);
+			} finally {
+				if (TRANSFER) {
+					stopTransferServices();
+				}
 			}
-			Map<String, Set<String>> keys_UMx;
-			{
-				System.out.println("Mapping split files...");
-				long startTime = System.currentTimeMillis();
-				keys_UMx = mapSplitFiles(Sx, reachableSlaves);
-				long endTime = System.currentTimeMillis();
-				double totalTime = endTime - startTime;
-				System.out.println("Mapping time: " + totalTime / 1000);
+			if (TRACE) {
+				JobTrace.export(Paths.get(outputFile + TRACE_SUFFIX));
+				System.out.println("Timeline: " + outputFile + TRACE_SUFFIX);
 			}
-			List<String> wordCounts;
-			{
-				System.out.println("Shuffle/reduce unsorted map files...");
-				long startTime = System.currentTimeMillis();
-				wordCounts = shuffleReduceMapFiles(keys_UMx, reachableSlaves);
-				long endTime = System.currentTimeMillis();
-				double totalTime = endTime - startTime;
-				System.out.println("Shuffle/reduce time: " + totalTime / 1000);
+		} else {
+			System.err.println("No reachable slave hosts");
+		}
+	}
+
+	/**
+	 * Describes the input files of a job for its manifest: the path, size and
+	 * last modification time of each of them, so that a job whose inputs
+	 * changed is not resumed.
+	 *
+	 * @param inputFiles
+	 *            the input files.
+	 * @return the description of the input files.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private String describeInputFiles(final List<Path> inputFiles)
+			throws IOException {
+		final StringBuilder description = new StringBuilder();
+		for (final Path inputFile : inputFiles) {
+			if (description.length() > 0) {
+				description.append(',');
 			}
-			{
-				System.out.println("Assembling Final Result...");
-				long startTime = System.currentTimeMillis();
-				Collections.sort(wordCounts, new Comparator<String>() {
-					@Override
-					public int compare(final String o1, final String o2) {
-						return Integer.valueOf(o2.split(":")[1])
-								- Integer.valueOf(o1.split(":")[1]);
+			description.append(inputFile).append(' ')
+					.append(Files.size(inputFile)).append(' ')
+					.append(Files.getLastModifiedTime(inputFile).toMillis());
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Expands the input file argument into the list of input files: either a
+	 * single file, a comma-separated list of files, or a glob pattern on the
+	 * file names of a directory. The files of the job (the host files, the
+	 * output file and its timeline), its split, map and reduce files and the
+	 * output files of a previous batch ("*-output.txt") never match a
+	 * pattern.
+	 *
+	 * @param inputFile
+	 *            the input file argument.
+	 * @return the input files, in order.
+	 * @throws IOException
+	 *             if any I/O error occurred or no input file matched.
+	 */
+	private List<Path> expandInputFiles(final String inputFile)
+			throws IOException {
+		final List<Path> inputFiles = new ArrayList<>();
+		if (inputFile.matches(".*[*?\\[{].*")) {
+			final Path pattern = Paths.get(inputFile);
+			final Path dir = pattern.getParent() != null ? pattern.getParent()
+					: Paths.get(".");
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir,
+					pattern.getFileName().toString())) {
+				for (final Path file : files) {
+					final String name = file.getFileName().toString();
+					if (Files.isRegularFile(file)
+							&& !name.endsWith(OUTPUT_SUFFIX)
+							&& !name.matches(ARTIFACT_PATTERN)
+							&& !jobFiles.contains(file.toAbsolutePath()
+									.normalize())) {
+						inputFiles.add(file);
 					}
-				});
-				long endTime = System.currentTimeMillis();
-				double totalTime = endTime - startTime;
-				System.out.println("Assembling time: " + totalTime / 1000);
+				}
 			}
-			System.out.println(wordCounts.subList(0,
-					Math.min(50, wordCounts.size())));
-			Files.write(Paths.get(outputFile), wordCounts,
-					Charset.defaultCharset(), new OpenOption[0]);
+			Collections.sort(inputFiles);
 		} else {
-			System.err.println("No reachable slave hosts");
+			for (final String file : inputFile.split(",")) {
+				inputFiles.add(Paths.get(file));
+			}
+		}
+		if (inputFiles.isEmpty()) {
+			throw new IOException("No input file matches " + inputFile);
+		}
+		return inputFiles;
+	}
+
+	/**
+	 * Groups the results of the reduce partitions by source, each line of the
+	 * reducers starting with the source it belongs to: the index of an input
+	 * file, or "*" for the total of all the input files. The order of the
+	 * results, given by the "ORDER rank" or "ORDER key" line of each reducer,
+	 * is recorded for the merge.
+	 *
+	 * @param partitionCounts
+	 *            the mapping of reduce partitions to the lines of their
+	 *            result.
+	 * @return a mapping of sources to the mapping of reduce partitions to
+	 *         their "&lt;sort key&gt; &lt;line&gt;" lines for the source; each
+	 *         source of the job has a mapping, even when empty.
+	 * @throws IOException
+	 *             if the reducers disagree on the order of the results.
+	 */
+	private Map<String, Map<Integer, List<String>>> groupBySource(
+			final Map<Integer, List<String>> partitionCounts)
+			throws IOException {
+		String order = null;
+		final Map<String, Map<Integer, List<String>>> sourceCounts = new HashMap<>();
+		sourceCounts.put("*", new HashMap<Integer, List<String>>());
+		for (int i = 0; i < inputs.size(); i++) {
+			sourceCounts.put(String.valueOf(i),
+					new HashMap<Integer, List<String>>());
 		}
+		for (final Map.Entry<Integer, List<String>> entry : partitionCounts
+				.entrySet()) {
+			for (final String line : entry.getValue()) {
+				if (line.startsWith("ORDER ")) {
+					if (order != null && !order.equals(line)) {
+						throw new IOException("Reducers disagree on the order: "
+								+ order + ", " + line);
+					}
+					order = line;
+					continue;
+				}
+				final int separator = line.indexOf(' ');
+				final Map<Integer, List<String>> counts = sourceCounts
+						.get(line.substring(0, separator));
+				if (!counts.containsKey(entry.getKey())) {
+					counts.put(entry.getKey(), new ArrayList<String>());
+				}
+				counts.get(entry.getKey()).add(line.substring(separator + 1));
+			}
+		}
+		rankOrder = "ORDER rank".equals(order);
+		return sourceCounts;
 	}
 
 	/**
@@ -152,34 +340,48 @@ public class Master {
 	 *
 	 * @param Sx
 	 *            the list of split file pathnames.
+	 * @param partitions
+	 *            the number of reduce partitions.
 	 * @param reachableSlaves
 	 *            the list of reachable slave hosts.
 	 * @return a map that associates to each of the slave hosts the result of
-	 *         its computation.
+	 *         its computation, including the results recorded in the manifest
+	 *         by a previous run.
+	 * @throws IOException
+	 *             if any I/O error occurred or any batch failed.
 	 */
 	private Map<String, List<String>> mapRemoteExec(final List<String> Sx,
-			final List<String> reachableSlaves) {
-		final Map<String, List<String>> results = new HashMap<>();
+			final int partitions, final List<String> reachableSlaves)
+			throws IOException {
+		if (TRANSFER) {
+			// The map files of a host are only served by the host itself.
+			final List<String> lost = manifest.forgetMaps(scheduler
+					.getHosts());
+			if (!lost.isEmpty()) {
+				System.out.println("Mapping again the batches of lost hosts: "
+						+ lost);
+			}
+		}
+		final Map<String, List<String>> results = manifest.getMapOutputs();
 		final List<SlaveThread> slaveThreads = new ArrayList<>();
 		// Start threads for every single slave computation.
-		final Iterator<String> Sx_iter = Sx.iterator();
+		final List<String> pendingSx = new ArrayList<>();
+		for (final String Si : Sx) {
+			if (!manifest.isMapped(Si)) {
+				pendingSx.add(Si);
+			}
+		}
+		final Iterator<String> Sx_iter = pendingSx.iterator();
 		while (Sx_iter.hasNext()) {
 			slaveThreads.clear();
-			loop: for (int i = 0; i < TASKS_PER_SLAVE; i++) {
-				for (final String slave : reachableSlaves) {
-					if (!Sx_iter.hasNext()) {
-						break loop;
-					}
-					final String Si = Sx_iter.next();
-					final SlaveThread slaveThread = SlaveThread
-							.createMapSlaveThread(slave, Si);
-					slaveThreads.add(slaveThread);
-					slaveThread.start();
-				}
-			}
+			final Map<SlaveThread, List<String>> threadBatches = startBatchSlaveThreads(
+					Sx_iter, "MAP", Arrays.asList(JOB, String.valueOf(partitions)),
+					Sx_sources);
+			slaveThreads.addAll(threadBatches.keySet());
 			// Wait for all the slave threads to complete.
 			waitForSlaveThreads(slaveThreads);
 			// Consolidate results from slave threads
+			final List<String> failures = new ArrayList<>();
 			for (final SlaveThread slaveThread : slaveThreads) {
 				final String slave = slaveThread.getHost();
 				if (!results.containsKey(slave)) {
@@ -188,9 +390,20 @@ public class Master {
 				final List<String> output = slaveThread.getOutput();
 				if (output != null) {
 					results.get(slave).addAll(output);
+					manifest.commitMap(threadBatches.get(slaveThread), slave,
+							output);
+				} else {
+					failures.add(threadBatches.get(slaveThread) + " on "
+							+ slave);
 				}
 			}
+			// A lost batch would silently drop its words: stop the job, whose
+			// manifest keeps the completed batches for a resume.
+			if (!failures.isEmpty()) {
+				throw new IOException("Map failed for " + failures);
+			}
 		}
+		manifest.commitMapStage();
 		// Returns the consolidated results of the slave computations.
 		return results;
 	}
@@ -200,37 +413,166 @@ public class Master {
 	 *
 	 * @param Sx
 	 *            the list of split file pathnames.
+	 * @param partitions
+	 *            the number of reduce partitions.
 	 * @param reachableSlaves
 	 *            the list of reachable slave hosts.
-	 * @return a mapping of keys (words) to the UMx files that contain these
-	 *         words.
+	 * @return a mapping of reduce partitions to the segments of the UMx files
+	 *         that hold them, as "&lt;UMx&gt;@&lt;offset&gt;+&lt;length&gt;".
+	 * @throws IOException
+	 *             if any I/O error occurred.
 	 */
-	private Map<String, Set<String>> mapSplitFiles(final List<String> Sx,
-			final List<String> reachableSlaves) {
+	private Map<Integer, List<String>> mapSplitFiles(final List<String> Sx,
+			final int partitions, final List<String> reachableSlaves)
+			throws IOException {
 		final Map<String, List<String>> results = mapRemoteExec(Sx,
-				reachableSlaves);
+				partitions, reachableSlaves);
 		UMx_machines = new HashMap<>();
-		final Map<String, Set<String>> keys_UMx = new HashMap<>();
+		final Map<Integer, List<String>> partitions_UMx = new HashMap<>();
 		if (DEBUG)
 			System.err.println(results);
 		for (final Map.Entry<String, List<String>> entry : results.entrySet()) {
 			final String host = entry.getKey();
-			for (final String pair : entry.getValue()) {
-				final String[] items = pair.split(":");
-				final String word = items[0];
-				final String UMxFile = items[1];
-				if (!keys_UMx.containsKey(word)) {
-					keys_UMx.put(word, new HashSet<String>());
+			for (final String line : entry.getValue()) {
+				final String[] items = line.split(" ", 2);
+				final Integer partition = Integer.valueOf(items[0]);
+				final String segment = items[1];
+				if (!partitions_UMx.containsKey(partition)) {
+					partitions_UMx.put(partition, new ArrayList<String>());
 				}
-				keys_UMx.get(word).add(UMxFile);
-				UMx_machines.put(UMxFile, host);
+				partitions_UMx.get(partition).add(segment);
+				UMx_machines.put(segment.substring(0, segment.lastIndexOf('@')),
+						host);
 			}
 		}
 		if (DEBUG)
-			System.err.println("Keys_UMx:" + keys_UMx);
+			System.err.println("Partitions_UMx:" + partitions_UMx);
 		if (DEBUG)
 			System.err.println("UMx_machines:" + UMx_machines);
-		return keys_UMx;
+		return partitions_UMx;
+	}
+
+	/**
+	 * Merges the results of the reduce partitions, each already sorted in the
+	 * order of the job, into the output file: by decreasing rank, or by
+	 * increasing key, as given by the sort key leading each line. The merge
+	 * streams the lines in a single pass over the partitions, and stops as
+	 * soon as the number of lines requested by the "shavadoop.limit" property
+	 * is written.
+	 *
+	 * @param partitionCounts
+	 *            the mapping of reduce partitions to the "&lt;sort key&gt;
+	 *            &lt;line&gt;" lines of their result.
+	 * @param outputFile
+	 *            the file to write the result to.
+	 * @param top
+	 *            the number of first lines to return.
+	 * @return the first lines of the result.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private List<String> mergeReduceOutputs(
+			final Map<Integer, List<String>> partitionCounts,
+			final Path outputFile, final int top) throws IOException {
+		final List<Iterator<String>> iters = new ArrayList<>();
+		for (final List<String> lines : partitionCounts.values()) {
+			iters.add(lines.iterator());
+		}
+		final String[] heads = new String[iters.size()]; // the next line of
+															// each partition
+		final String[] headKeys = new String[iters.size()]; // and its sort key
+		final long[] headRanks = new long[iters.size()]; // and its rank
+		final PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1,
+				iters.size()), new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer i1, final Integer i2) {
+				final int order = rankOrder ? Long.compare(headRanks[i2],
+						headRanks[i1]) : headKeys[i1].compareTo(headKeys[i2]);
+				return order != 0 ? order : Integer.compare(i1, i2);
+			}
+		});
+		for (int i = 0; i < iters.size(); i++) {
+			if (iters.get(i).hasNext()) {
+				nextHead(iters.get(i).next(), i, heads, headKeys, headRanks);
+				queue.add(i);
+			}
+		}
+		final List<String> topLines = new ArrayList<>();
+		int count = 0;
+		try (BufferedWriter writer = Files.newBufferedWriter(outputFile,
+				Charset.defaultCharset())) {
+			while (!queue.isEmpty()
+					&& (OUTPUT_LIMIT <= 0 || count < OUTPUT_LIMIT)) {
+				final int i = queue.poll();
+				writer.write(heads[i]);
+				writer.newLine();
+				if (count++ < top) {
+					topLines.add(heads[i]);
+				}
+				if (iters.get(i).hasNext()) {
+					nextHead(iters.get(i).next(), i, heads, headKeys,
+							headRanks);
+					queue.add(i);
+				}
+			}
+		}
+		return topLines;
+	}
+
+	/**
+	 * Splits the next "&lt;sort key&gt; &lt;line&gt;" line of a reduce
+	 * partition being merged into its line and its sort key.
+	 *
+	 * @param line
+	 *            the next line of the partition.
+	 * @param i
+	 *            the index of the partition.
+	 * @param heads
+	 *            the next line of each partition.
+	 * @param headKeys
+	 *            the sort key of the next line of each partition.
+	 * @param headRanks
+	 *            the rank of the next line of each partition, in rank order.
+	 */
+	private void nextHead(final String line, final int i,
+			final String[] heads, final String[] headKeys,
+			final long[] headRanks) {
+		final int separator = line.indexOf(' ');
+		heads[i] = line.substring(separator + 1);
+		headKeys[i] = line.substring(0, separator);
+		if (rankOrder) {
+			headRanks[i] = Long.parseLong(headKeys[i]);
+		}
+	}
+
+	/**
+	 * Returns the slave hosts to assign the tasks of the next wave to,
+	 * probing their capacities again first if they are outdated. The hosts
+	 * which fail the probe are left out.
+	 *
+	 * @return the slave hosts, once per task.
+	 * @throws IOException
+	 *             if no slave host is left.
+	 */
+	private List<String> nextWave() throws IOException {
+		if (scheduler.isStale()) {
+			final Map<String, HostCapacity> results = pingRemoteExec(
+					scheduler.getHosts(), true);
+			final List<HostCapacity> capacities = new ArrayList<>();
+			for (final HostCapacity capacity : results.values()) {
+				if (capacity != null) {
+					capacities.add(capacity);
+				}
+			}
+			scheduler.update(capacities);
+			if (capacities.isEmpty()) {
+				throw new IOException("No reachable slave hosts left");
+			}
+			System.out.println("Re-probed slots: "
+					+ scheduler.getTotalSlots() + " on " + capacities.size()
+					+ " hosts");
+		}
+		return scheduler.getWave(TASKS_PER_SLAVE);
 	}
 
 	/**
@@ -238,13 +580,19 @@ public class Master {
 	 *
 	 * @param hosts
 	 *            the list of candidate slave machines.
-	 * @return a mapping of slave machine host names to their respective status.
+	 * @param probe
+	 *            whether to use the "PROBE" command, which only reports the
+	 *            capacity, instead of the "PING" command.
+	 * @return a mapping of slave machine host names to their respective
+	 *         capacity, or null if not reachable.
 	 */
-	private Map<String, Boolean> pingRemoteExec(final List<String> hosts) {
+	private Map<String, HostCapacity> pingRemoteExec(final List<String> hosts,
+			final boolean probe) {
 		final List<SlaveThread> slaveThreads = new ArrayList<>();
 		// Start threads for every single slave computation.
 		for (final String host : hosts) {
-			final SlaveThread slaveThread = SlaveThread
+			final SlaveThread slaveThread = probe ? SlaveThread
+					.createProbeSlaveThread(host) : SlaveThread
 					.createPingSlaveThread(host);
 			slaveThreads.add(slaveThread);
 			slaveThread.start();
@@ -252,13 +600,15 @@ public class Master {
 		// Wait for all the slave threads to complete.
 		waitForSlaveThreads(slaveThreads);
 		// Consolidate results from slave threads
-		final Map<String, Boolean> results = new HashMap<>();
+		final Map<String, HostCapacity> results = new HashMap<>();
 		for (final SlaveThread slaveThread : slaveThreads) {
 			if (DEBUG)
 				System.err.println(slaveThread.getOutput());
 			final List<String> output = slaveThread.getOutput();
-			results.put(slaveThread.getHost(), output != null
-					&& output.size() > 0 && "OK".equals(output.get(0)));
+			final String host = slaveThread.getHost();
+			results.put(host, output != null && output.size() > 0
+					&& "OK".equals(output.get(0)) ? HostCapacity.parse(host,
+					output) : null);
 		}
 		// Returns the consolidated results of the slave computations.
 		return results;
@@ -278,14 +628,17 @@ public class Master {
 	 */
 	private List<String> pingSlaves(final List<String> hosts,
 			final String slaveHostsStatusFile) throws IOException {
-		final Map<String, Boolean> results = pingRemoteExec(hosts);
+		final Map<String, HostCapacity> results = pingRemoteExec(hosts, false);
 		saveReachabilityStatus(Paths.get(slaveHostsStatusFile), results);
 		final List<String> reachableHosts = new ArrayList<>();
+		final List<HostCapacity> capacities = new ArrayList<>();
 		for (final String host : results.keySet()) {
-			if (results.get(host)) {
+			if (results.get(host) != null) {
 				reachableHosts.add(host);
+				capacities.add(results.get(host));
 			}
 		}
+		scheduler = new Scheduler(capacities);
 		return reachableHosts;
 	}
 
@@ -304,21 +657,192 @@ public class Master {
 		return lines;
 	}
 
+	/**
+	 * Returns the locations of map file segments for a reducer: the segments
+	 * produced by the reducer host itself are read locally, the other ones
+	 * are fetched from the transfer service of the producer host, as
+	 * "//&lt;host&gt;:&lt;port&gt;/&lt;UMx&gt;@&lt;offset&gt;+&lt;length&gt;".
+	 *
+	 * @param segments
+	 *            the map file segments.
+	 * @param reducer
+	 *            the slave host running the reducer.
+	 * @return the locations of the map file segments.
+	 */
+	private List<String> remoteMapFiles(final List<String> segments,
+			final String reducer) {
+		final List<String> locations = new ArrayList<>();
+		for (final String segment : segments) {
+			final String UMxFile = segment.substring(0,
+					segment.lastIndexOf('@'));
+			final String producer = UMx_machines.get(UMxFile);
+			if (reducer.equals(producer)) {
+				locations.add(segment);
+			} else {
+				locations.add("//" + producer + ":"
+						+ transferPorts.get(producer) + "/"
+						+ Paths.get(UMxFile).getFileName()
+						+ segment.substring(UMxFile.length()));
+			}
+		}
+		return locations;
+	}
+
+	/**
+	 * Runs the split, map, shuffle/reduce and assembling stages of the job,
+	 * resuming from its manifest if a previous run did not complete.
+	 *
+	 * @param inputFile
+	 *            the input file to process.
+	 * @param outputFile
+	 *            the file to write the word counts to.
+	 * @param size
+	 *            the number of lines per split, or "auto".
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void runJob(final String inputFile, final String outputFile,
+			final String size) throws IOException {
+		inputs = expandInputFiles(inputFile);
+		if (inputs.size() > 1) {
+			System.out.println("Batch of " + inputs.size() + " input files: "
+					+ inputs);
+		}
+		final Path manifestDir = Paths.get(outputFile + MANIFEST_SUFFIX);
+		final String job = describeInputFiles(inputs) + "\t" + size + "\t"
+				+ (APPROXIMATE ? "approximate" : JOB);
+		manifest = JobManifest.open(manifestDir, job);
+		Sx_sources = manifest.getSplits();
+		if (Sx_sources != null) {
+			for (final String Si : Sx_sources.keySet()) {
+				if (!Files.isRegularFile(Paths.get(Si))) {
+					System.out.println("Split file " + Si
+							+ " is missing, restarting the job");
+					manifest.delete();
+					manifest = JobManifest.open(manifestDir, job);
+					Sx_sources = null;
+					break;
+				}
+			}
+		}
+		int partitions = manifest.getPartitions();
+		if (Sx_sources != null) {
+			System.out.println("Resuming job from " + outputFile
+					+ MANIFEST_SUFFIX);
+		} else {
+			System.out.println("Splitting input file...");
+			long startTime = System.currentTimeMillis();
+			Sx_sources = splitInputFiles(inputs, size);
+			partitions = REDUCERS > 0 ? REDUCERS : scheduler.getTotalSlots();
+			manifest.commitSplits(Sx_sources, partitions);
+			long endTime = System.currentTimeMillis();
+			JobTrace.addStage("Splitting", startTime, endTime);
+			double totalTime = endTime - startTime;
+			System.out.println(Sx_sources.keySet().toString());
+			System.out.println("Splitting time: " + totalTime / 1000);
+		}
+		final List<String> Sx = new ArrayList<>(Sx_sources.keySet());
+		if (APPROXIMATE) {
+			SketchSummary summary;
+			{
+				System.out.println("Sketching split files...");
+				long startTime = System.currentTimeMillis();
+				summary = sketchSplitFiles(Sx);
+				long endTime = System.currentTimeMillis();
+				JobTrace.addStage("Sketching", startTime, endTime);
+				double totalTime = endTime - startTime;
+				System.out.println("Sketching time: " + totalTime / 1000);
+			}
+			final List<String> lines = new ArrayList<>();
+			lines.add("# words: " + summary.getTotal());
+			lines.add("# distinct words: " + summary.getDistinctWords()
+					+ " (relative standard error "
+					+ summary.getDistinctWordsError() + ")");
+			lines.add("# counts: over-estimated by at most "
+					+ summary.getCountError() + " with probability "
+					+ (1 - Math.exp(-SketchSummary.CMS_DEPTH))
+					+ ", under-estimated by at most "
+					+ summary.getHeavyHitterError() + " in the lower bound");
+			lines.addAll(summary.getTopWords(TOP_WORDS));
+			System.out.println(lines);
+			Files.write(Paths.get(outputFile), lines,
+					Charset.defaultCharset(), new OpenOption[0]);
+			manifest.delete();
+			return;
+		}
+		Map<Integer, List<String>> partitions_UMx;
+		{
+			System.out.println("Mapping split files...");
+			long startTime = System.currentTimeMillis();
+			partitions_UMx = mapSplitFiles(Sx, partitions, reachableSlaves);
+			long endTime = System.currentTimeMillis();
+			JobTrace.addStage("Mapping", startTime, endTime);
+			double totalTime = endTime - startTime;
+			System.out.println("Mapping time: " + totalTime / 1000);
+		}
+		Map<Integer, List<String>> partitionCounts;
+		{
+			System.out.println("Shuffle/reduce map files...");
+			long startTime = System.currentTimeMillis();
+			partitionCounts = shuffleReduceMapFiles(partitions_UMx,
+					reachableSlaves);
+			long endTime = System.currentTimeMillis();
+			JobTrace.addStage("Shuffle/reduce", startTime, endTime);
+			double totalTime = endTime - startTime;
+			System.out.println("Shuffle/reduce time: " + totalTime / 1000);
+		}
+		// The manifest is only deleted once the whole input is counted.
+		for (final String Si : Sx) {
+			if (!manifest.isMapped(Si)) {
+				throw new IOException("Split not mapped: " + Si);
+			}
+		}
+		for (final Integer partition : partitions_UMx.keySet()) {
+			if (!manifest.isReduced(partition)) {
+				throw new IOException("Partition not reduced: " + partition);
+			}
+		}
+		List<String> topCounts;
+		{
+			System.out.println("Assembling Final Result...");
+			long startTime = System.currentTimeMillis();
+			final Map<String, Map<Integer, List<String>>> sourceCounts = groupBySource(partitionCounts);
+			if (inputs.size() > 1) {
+				for (int i = 0; i < inputs.size(); i++) {
+					mergeReduceOutputs(sourceCounts.get(String.valueOf(i)),
+							sourceOutputFile(inputs.get(i)), 0);
+				}
+				topCounts = mergeReduceOutputs(sourceCounts.get("*"),
+						Paths.get(outputFile), 50);
+			} else {
+				topCounts = mergeReduceOutputs(sourceCounts.get("0"),
+						Paths.get(outputFile), 50);
+			}
+			long endTime = System.currentTimeMillis();
+			JobTrace.addStage("Assembling", startTime, endTime);
+			double totalTime = endTime - startTime;
+			System.out.println("Assembling time: " + totalTime / 1000);
+		}
+		System.out.println(topCounts);
+		manifest.delete();
+	}
+
 	/**
 	 * Saves the provided slave reachability results into the specified file.
 	 *
 	 * @param file
 	 *            the file to save the results to.
 	 * @param results
-	 *            a mapping of slave hosts to reachability status.
+	 *            a mapping of slave hosts to capacity, or null if not
+	 *            reachable.
 	 * @throws IOException
 	 *             if any I/O error occurred.
 	 */
 	private void saveReachabilityStatus(final Path file,
-			final Map<String, Boolean> results) throws IOException {
+			final Map<String, HostCapacity> results) throws IOException {
 		final List<CharSequence> lines = new ArrayList<>();
-		for (final Map.Entry<String, Boolean> entry : results.entrySet()) {
-			lines.add(entry.getKey() + ": " + entry.getValue());
+		for (final Map.Entry<String, HostCapacity> entry : results.entrySet()) {
+			lines.add(entry.getKey() + ": " + (entry.getValue() != null));
 		}
 		Files.write(file, lines, Charset.defaultCharset(), new OpenOption[0]);
 	}
@@ -326,120 +850,317 @@ public class Master {
 	/**
 	 * Implements the shuffle/reduce stage.
 	 *
-	 * @param keys_UMx
-	 *            the mapping of keys (words) to the UMx files that contain
-	 *            these words.
+	 * @param partitions_UMx
+	 *            the mapping of reduce partitions to the segments of the UMx
+	 *            files that hold them.
 	 * @param reachableSlaves
 	 *            the list of reachable slave hosts.
-	 * @return
+	 * @return a mapping of reduce partitions to the lines of their result,
+	 *         each sorted by decreasing value.
 	 * @throws IOException
 	 *             if any I/O error occurred.
 	 */
-	private List<String> shuffleReduceMapFiles(
-			final Map<String, Set<String>> keys_UMx,
+	private Map<Integer, List<String>> shuffleReduceMapFiles(
+			final Map<Integer, List<String>> partitions_UMx,
 			final List<String> reachableSlaves) throws IOException {
-		final Map<String, List<String>> results = shuffleReduceRemoteExec(
-				keys_UMx, reachableSlaves);
+		final Map<Integer, List<String>> results = shuffleReduceRemoteExec(
+				partitions_UMx, reachableSlaves);
 		RMx_machines = new HashMap<>();
-		final List<String> unsortedResults = new ArrayList<>();
 		if (DEBUG)
 			System.err.println(results);
-		for (final List<String> wordCounts : results.values()) {
-			unsortedResults.addAll(wordCounts);
-		}
-
-		return unsortedResults;
+		return results;
 	}
 
 	/**
 	 * Distributes the "shuffle/reduce" job execution on the provided list of
 	 * slave hosts.
 	 *
-	 * @param keys_UMx
-	 *            a mapping of keys (words) to the UMx files that contain these
-	 *            words.
+	 * @param partitions_UMx
+	 *            a mapping of reduce partitions to the segments of the UMx
+	 *            files that hold them.
 	 * @param reachableSlaves
 	 *            the list of reachable slave hosts.
-	 * @return a map that associates to each word its number of occurrences.
+	 * @return a map that associates to each reduce partition the lines of its
+	 *         result, including the results recorded in the manifest by a
+	 *         previous run.
+	 * @throws IOException
+	 *             if any I/O error occurred or any partition failed.
 	 */
-	private Map<String, List<String>> shuffleReduceRemoteExec(
-			final Map<String, Set<String>> keys_UMx,
-			final List<String> reachableSlaves) {
-		final Map<String, List<String>> results = new HashMap<>();
-		final List<SlaveThread> slaveThreads = new ArrayList<>();
+	private Map<Integer, List<String>> shuffleReduceRemoteExec(
+			final Map<Integer, List<String>> partitions_UMx,
+			final List<String> reachableSlaves) throws IOException {
+		final Map<Integer, List<String>> results = manifest.getReduceOutputs();
+		final Map<SlaveThread, Integer> slaveThreads = new LinkedHashMap<>();
 		// Start threads for every single slave computation.
-		int i = 0;
-		final Iterator<String> keys_iter = keys_UMx.keySet().iterator();
-		while (keys_iter.hasNext()) {
+		final List<Integer> pendingPartitions = new ArrayList<>();
+		for (final Integer partition : partitions_UMx.keySet()) {
+			if (!manifest.isReduced(partition)) {
+				pendingPartitions.add(partition);
+			}
+		}
+		final Iterator<Integer> partitions_iter = pendingPartitions.iterator();
+		while (partitions_iter.hasNext()) {
 			slaveThreads.clear();
-			loop: for (int j = 0; j < TASKS_PER_SLAVE; j++) {
-				for (final String slave : reachableSlaves) {
-					if (!keys_iter.hasNext()) {
-						break loop;
-					}
-					final String word = keys_iter.next();
-					if (word.length() > 0) {
-						final String RMi = "RM" + i++;
-						final Set<String> UMx = keys_UMx.get(word);
-						final SlaveThread slaveThread = SlaveThread
-								.createReduceShuffleSlaveThread(slave, word,
-										RMi, UMx);
-						slaveThreads.add(slaveThread);
-						slaveThread.start();
-					}
+			for (final String slave : nextWave()) {
+				if (!partitions_iter.hasNext()) {
+					break;
 				}
+				final Integer partition = partitions_iter.next();
+				final String RMi = TRANSFER ? TRANSFER_DIR + "/RM" + partition
+						: "RM" + partition;
+				final List<String> UMx = TRANSFER ? remoteMapFiles(
+						partitions_UMx.get(partition), slave) : partitions_UMx
+						.get(partition);
+				final SlaveThread slaveThread = SlaveThread
+						.createReduceShuffleSlaveThread(slave, JOB, RMi,
+								inputs.size() > 1, UMx);
+				slaveThread.setToken(transferToken);
+				slaveThreads.put(slaveThread, partition);
+				slaveThread.start();
 			}
 			// Wait for all the slave threads to complete.
-			waitForSlaveThreads(slaveThreads);
+			waitForSlaveThreads(new ArrayList<>(slaveThreads.keySet()));
 			// Consolidate results from slave threads
-			for (final SlaveThread slaveThread : slaveThreads) {
-				final String slave = slaveThread.getHost();
-				if (!results.containsKey(slave)) {
-					results.put(slave, new ArrayList<String>());
-				}
-				final List<String> output = slaveThread.getOutput();
+			final List<String> failures = new ArrayList<>();
+			for (final Map.Entry<SlaveThread, Integer> entry : slaveThreads
+					.entrySet()) {
+				final String slave = entry.getKey().getHost();
+				final List<String> output = entry.getKey().getOutput();
 				if (output != null) {
-					results.get(slave).addAll(output);
+					results.put(entry.getValue(), output);
+					manifest.commitReduce(entry.getValue(), slave, output);
+				} else {
+					failures.add("RM" + entry.getValue() + " on " + slave);
 				}
 			}
+			// Stop the job rather than assemble a partial result; the
+			// manifest keeps the completed partitions for a resume.
+			if (!failures.isEmpty()) {
+				throw new IOException("Shuffle/reduce failed for " + failures);
+			}
 		}
 		// Returns the consolidated results of the slave computations.
 		return results;
 	}
 
 	/**
-	 * Splits the specified input file. Current implementation only splits on
-	 * each line.
+	 * Implements the sketch stage of the approximate mode, which replaces the
+	 * map and shuffle/reduce stages: each batch of split files is summarized
+	 * by a slave, and the summaries are merged.
 	 *
-	 * @param inputFile
-	 *            the input file to split.
-	 * @return the path names of the files containing the splits.
+	 * @param Sx
+	 *            the list of split file pathnames.
+	 * @return the merged summary.
 	 * @throws IOException
-	 *             if any I/O error occurred.
+	 *             if no slave host is left, or any batch failed or was
+	 *             sketched with other parameters.
 	 */
-	private List<String> splitInputFile(final String inputFile, int size)
+	private SketchSummary sketchSplitFiles(final List<String> Sx)
 			throws IOException {
-		final List<String> splitInputFiles = new ArrayList<>();
-		final List<String> lines = readInputFile(Paths.get(inputFile));
-		int count = 0;
-		List<String> split = new ArrayList<String>();
-		String line;
-		for (int i = 0; i < lines.size(); i++) {
-			line = lines.get(i);
-			if (line.trim().length() > 0) {
-				split.add(line);
+		final SketchSummary summary = new SketchSummary();
+		final Iterator<String> Sx_iter = Sx.iterator();
+		while (Sx_iter.hasNext()) {
+			final List<SlaveThread> slaveThreads = new ArrayList<>(
+					startBatchSlaveThreads(Sx_iter, "SKETCH",
+							Collections.<String> emptyList(), null).keySet());
+			// Wait for all the slave threads to complete.
+			waitForSlaveThreads(slaveThreads);
+			for (final SlaveThread slaveThread : slaveThreads) {
+				final List<String> output = slaveThread.getOutput();
+				if (output == null) {
+					throw new IOException("Sketch failed for "
+							+ slaveThread.getParams() + " on "
+							+ slaveThread.getHost());
+				}
+				summary.add(output);
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Returns the output file of an input file of a batch:
+	 * "&lt;name&gt;-output.txt" next to the input file, without the extension
+	 * of the input file.
+	 *
+	 * @param input
+	 *            the input file.
+	 * @return the output file.
+	 */
+	private Path sourceOutputFile(final Path input) {
+		final String name = input.getFileName().toString();
+		final int extension = name.lastIndexOf('.');
+		return input.resolveSibling((extension > 0 ? name.substring(0,
+				extension) : name) + OUTPUT_SUFFIX);
+	}
+
+	/**
+	 * Splits the specified input files. Splits always end on a line boundary
+	 * and never span two input files; they either hold a fixed number of
+	 * lines or, in "auto" mode, the number of bytes chosen by the
+	 * {@link SplitPlan} for the total size of the input files.
+	 *
+	 * @param inputFiles
+	 *            the input files to split.
+	 * @param size
+	 *            the number of lines per split, or "auto".
+	 * @return a mapping of the path names of the files containing the splits
+	 *         to their source, the index of the input file they come from.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private Map<String, Integer> splitInputFiles(final List<Path> inputFiles,
+			final String size) throws IOException {
+		int maxLines = Integer.MAX_VALUE;
+		long maxBytes = Long.MAX_VALUE;
+		if (AUTO_SPLIT_SIZE.equals(size)) {
+			long inputSize = 0;
+			for (final Path inputFile : inputFiles) {
+				inputSize += Files.size(inputFile);
 			}
-			if (split.size() >= size || (i + 1) >= lines.size()) {
-				final String splitFile = "S" + count++;
-				Files.write(Paths.get(splitFile), split,
-						Charset.defaultCharset(), new OpenOption[0]);
-				splitInputFiles.add(splitFile);
-				split.clear();
+			final SplitPlan plan = SplitPlan.plan(inputSize,
+					reachableSlaves.size(), scheduler.getTotalSlots());
+			System.out.println("Split plan: " + plan);
+			maxBytes = plan.getSplitSize();
+		} else {
+			maxLines = Integer.parseInt(size);
+		}
+		final Map<String, Integer> splitInputFiles = new LinkedHashMap<>();
+		final Charset charset = Charset.defaultCharset();
+		final int separatorBytes = System.lineSeparator()
+				.getBytes(charset).length;
+		int count = 0;
+		for (int source = 0; source < inputFiles.size(); source++) {
+			final List<String> lines = readInputFile(inputFiles.get(source));
+			List<String> split = new ArrayList<String>();
+			long bytes = 0; // the size of the split file, once encoded
+			String line;
+			for (int i = 0; i < lines.size(); i++) {
+				line = lines.get(i);
+				if (line.trim().length() > 0) {
+					split.add(line);
+					bytes += line.getBytes(charset).length + separatorBytes;
+				}
+				if (split.size() >= maxLines || bytes >= maxBytes
+						|| (i + 1) >= lines.size()) {
+					final String splitFile = "S" + count++;
+					Files.write(Paths.get(splitFile), split, charset,
+							new OpenOption[0]);
+					splitInputFiles.put(splitFile, source);
+					split.clear();
+					bytes = 0;
+				}
 			}
 		}
 		return splitInputFiles;
 	}
 
+	/**
+	 * Starts the next wave of a stage processing batches of split files: each
+	 * slave host processes its share of the wave in a single batch.
+	 *
+	 * @param Sx_iter
+	 *            the iterator over the split files left to process.
+	 * @param command
+	 *            the command processing the batches ("MAP" or "SKETCH").
+	 * @param args
+	 *            the parameters of the command preceding the split files.
+	 * @param sources
+	 *            the mapping of the split files to their source, to give
+	 *            along with each split as "&lt;Sx&gt;@&lt;source&gt;", or null.
+	 * @return a mapping of the started slave threads to their batch.
+	 * @throws IOException
+	 *             if no slave host is left.
+	 */
+	private Map<SlaveThread, List<String>> startBatchSlaveThreads(
+			final Iterator<String> Sx_iter, final String command,
+			final List<String> args, final Map<String, Integer> sources)
+			throws IOException {
+		final Map<String, List<String>> batches = new LinkedHashMap<>();
+		for (final String slave : nextWave()) {
+			if (!Sx_iter.hasNext()) {
+				break;
+			}
+			if (!batches.containsKey(slave)) {
+				batches.put(slave, new ArrayList<String>());
+			}
+			batches.get(slave).add(Sx_iter.next());
+		}
+		final Map<SlaveThread, List<String>> threadBatches = new LinkedHashMap<>();
+		for (final Map.Entry<String, List<String>> batch : batches.entrySet()) {
+			final String slave = batch.getKey();
+			final List<String> params = new ArrayList<>();
+			for (final String Si : batch.getValue()) {
+				// The slave reads the copies pushed to its local directory.
+				params.add((TRANSFER ? TRANSFER_DIR + "/" + Si : Si)
+						+ (sources != null ? "@" + sources.get(Si) : ""));
+			}
+			final SlaveThread slaveThread = SlaveThread.createBatchSlaveThread(
+					slave, command, args, params);
+			if (TRANSFER) {
+				slaveThread.setToken(transferToken);
+				slaveThread.setUploads(transferPorts.get(slave),
+						batch.getValue());
+			}
+			threadBatches.put(slaveThread, batch.getValue());
+			slaveThread.start();
+		}
+		return threadBatches;
+	}
+
+	/**
+	 * Starts the transfer service of each reachable slave host, and waits for
+	 * them to accept connections.
+	 *
+	 * @throws IOException
+	 *             if any service could not be reached.
+	 */
+	private void startTransferServices() throws IOException {
+		int port = TRANSFER_PORT;
+		for (final String slave : reachableSlaves) {
+			transferPorts.put(slave, port);
+			final SlaveThread serveThread = SlaveThread.createServeSlaveThread(
+					slave, port++, TRANSFER_DIR, transferToken);
+			serveThreads.add(serveThread);
+			serveThread.start();
+		}
+		for (final String slave : reachableSlaves) {
+			TransferClient.awaitReady(slave, transferPorts.get(slave));
+		}
+	}
+
+	/**
+	 * Stops the transfer services of the slave hosts. The services which
+	 * cannot be asked to quit, or do not stop in time, are killed; this
+	 * method never throws, so as not to hide the failure of the job.
+	 */
+	private void stopTransferServices() {
+		for (final SlaveThread serveThread : serveThreads) {
+			try {
+				TransferClient.quit(serveThread.getHost(),
+						transferPorts.get(serveThread.getHost()),
+						transferToken);
+			} catch (final IOException | RuntimeException e) {
+				e.printStackTrace();
+				serveThread.kill();
+			}
+		}
+		final long deadline = System.currentTimeMillis() + QUIT_TIMEOUT;
+		for (final SlaveThread serveThread : serveThreads) {
+			try {
+				serveThread.join(Math.max(1,
+						deadline - System.currentTimeMillis()));
+			} catch (final InterruptedException e) {
+				e.printStackTrace();
+			}
+			if (serveThread.isAlive()) {
+				System.err.println("Killing the transfer service of "
+						+ serveThread.getHost());
+				serveThread.kill();
+			}
+		}
+	}
+
 	/**
 	 * Waits for all designated slave threads.
 	 *
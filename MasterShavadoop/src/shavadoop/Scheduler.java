@@ -0,0 +1,135 @@
+package shavadoop;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sizes the waves of tasks dispatched to the slave hosts according to their
+ * capacity, so that the hosts with more idle cores take proportionally more
+ * tasks.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class Scheduler {
+	public static final long REFRESH_INTERVAL = Long.getLong(
+			"shavadoop.refresh", 60000); // the delay after which the
+											// capacities are probed again,
+											// in ms
+
+	private final Map<String, HostCapacity> capacities = new LinkedHashMap<>(); // host -> capacity
+
+	private final Map<String, Integer> dispatched = new HashMap<>(); // host -> slots of the last wave
+
+	private long lastUpdate; // the time of the last update of the capacities
+
+	/**
+	 * Creates an instance of Scheduler.
+	 *
+	 * @param capacities
+	 *            the capacities of the reachable slave hosts.
+	 */
+	Scheduler(final Collection<HostCapacity> capacities) {
+		update(capacities);
+	}
+
+	/**
+	 * Returns the capacity of the specified slave host.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @return the capacity of the slave host.
+	 */
+	HostCapacity getCapacity(final String host) {
+		return capacities.get(host);
+	}
+
+	/**
+	 * Returns the scheduled slave hosts.
+	 *
+	 * @return the slave hosts.
+	 */
+	List<String> getHosts() {
+		return new ArrayList<>(capacities.keySet());
+	}
+
+	/**
+	 * Returns the total number of slots over all the slave hosts.
+	 *
+	 * @return the total number of slots.
+	 */
+	int getTotalSlots() {
+		int slots = 0;
+		for (final HostCapacity capacity : capacities.values()) {
+			slots += capacity.getSlots();
+		}
+		return slots;
+	}
+
+	/**
+	 * Returns the next wave of task assignments: each slave host appears once
+	 * per slot. Hosts are interleaved so that a partial wave (at the end of a
+	 * stage) is still spread over all of them.
+	 *
+	 * @param tasksPerSlot
+	 *            the number of tasks assigned to each slot.
+	 * @return the slave hosts to assign the tasks of the wave to, in order.
+	 */
+	List<String> getWave(final int tasksPerSlot) {
+		final List<String> wave = new ArrayList<>();
+		final Map<String, Integer> remaining = new LinkedHashMap<>();
+		for (final HostCapacity capacity : capacities.values()) {
+			remaining.put(capacity.getHost(), capacity.getSlots()
+					* tasksPerSlot);
+			dispatched.put(capacity.getHost(), capacity.getSlots());
+		}
+		while (!remaining.isEmpty()) {
+			final List<String> exhausted = new ArrayList<>();
+			for (final Map.Entry<String, Integer> entry : remaining.entrySet()) {
+				wave.add(entry.getKey());
+				entry.setValue(entry.getValue() - 1);
+				if (entry.getValue() == 0) {
+					exhausted.add(entry.getKey());
+				}
+			}
+			remaining.keySet().removeAll(exhausted);
+		}
+		return wave;
+	}
+
+	/**
+	 * Returns whether the capacities should be probed again.
+	 *
+	 * @return true if the last update is older than the refresh interval.
+	 */
+	boolean isStale() {
+		return System.currentTimeMillis() - lastUpdate > REFRESH_INTERVAL;
+	}
+
+	/**
+	 * Updates the capacities of the slave hosts. The hosts which are not
+	 * reported failed the probe, and are no longer scheduled. The load of the
+	 * slots given to the last wave on each host is left out of its new
+	 * capacity, so that the job does not shrink its own waves.
+	 *
+	 * @param capacities
+	 *            the new capacities.
+	 */
+	void update(final Collection<HostCapacity> capacities) {
+		this.capacities.clear();
+		for (final HostCapacity capacity : capacities) {
+			final Integer slots = dispatched.get(capacity.getHost());
+			this.capacities.put(capacity.getHost(),
+					slots == null ? capacity : capacity.withoutLoad(slots));
+		}
+		dispatched.clear();
+		lastUpdate = System.currentTimeMillis();
+		if (Master.DEBUG)
+			System.err.println("Capacities: " + this.capacities.values());
+	}
+
+}
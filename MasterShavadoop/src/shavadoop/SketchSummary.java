@@ -0,0 +1,230 @@
+package shavadoop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the word sketches printed by the "SKETCH" command of the slaves, for
+ * the approximate job mode, and derives the top words and the number of
+ * distinct words along with their error bounds. The parameters and the hash
+ * function must match those of the WordSketch class of the slave, which
+ * prints them along with each sketch; a sketch made with other ones is
+ * rejected.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class SketchSummary {
+	public static final int CMS_DEPTH = 4; // the number of rows of the
+											// Count-Min sketch
+	public static final int CMS_WIDTH = 8192; // the number of counters per row
+	public static final int HEAVY_HITTERS = 1024; // the number of counters of
+													// the Misra-Gries summary
+	public static final int HLL_PRECISION = 12; // the number of hash bits
+												// indexing the HyperLogLog
+												// registers
+	public static final String HASH_PROBE = "shavadoop"; // the word whose
+															// hash the slaves
+															// print
+
+	/**
+	 * Hashes a word on 64 bits, as done by the slaves.
+	 *
+	 * @param word
+	 *            the word.
+	 * @return the hash.
+	 */
+	private static long hash(final String word) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < word.length(); i++) {
+			h ^= word.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private final long[][] cms = new long[CMS_DEPTH][CMS_WIDTH]; // the merged Count-Min sketch
+
+	private final byte[] hll = new byte[1 << HLL_PRECISION]; // the merged HyperLogLog registers
+
+	private final Map<String, Long> heavyHitters = new HashMap<>(); // the merged Misra-Gries counters
+
+	private long total = 0; // the number of words summarized
+
+	/**
+	 * Merges a sketch printed by a slave into this summary.
+	 *
+	 * @param output
+	 *            the output of the "SKETCH" command.
+	 * @throws IOException
+	 *             if the sketch was not made with the parameters and the hash
+	 *             function of this summary.
+	 */
+	void add(final List<String> output) throws IOException {
+		final String params = "PARAMS " + CMS_DEPTH + " " + CMS_WIDTH + " "
+				+ HEAVY_HITTERS + " " + HLL_PRECISION + " "
+				+ Long.toHexString(hash(HASH_PROBE));
+		if (output.isEmpty() || !params.equals(output.get(0))) {
+			throw new IOException("Sketch parameters "
+					+ (output.isEmpty() ? "missing" : output.get(0))
+					+ " do not match " + params);
+		}
+		for (final String line : output) {
+			final String[] fields = line.split(" ");
+			if ("TOTAL".equals(fields[0])) {
+				total += Long.parseLong(fields[1]);
+			} else if ("CMS".equals(fields[0])) {
+				final long[] row = cms[Integer.parseInt(fields[1])];
+				for (int i = 2; i < fields.length; i++) {
+					final int separator = fields[i].indexOf(':');
+					row[Integer.parseInt(fields[i].substring(0, separator))] += Long
+							.parseLong(fields[i].substring(separator + 1));
+				}
+			} else if ("HLL".equals(fields[0])) {
+				for (int i = 0; i < hll.length; i++) {
+					final byte register = (byte) Integer.parseInt(
+							fields[1].substring(2 * i, 2 * i + 2), 16);
+					if (register > hll[i]) {
+						hll[i] = register;
+					}
+				}
+			} else if ("HH".equals(fields[0])) {
+				final Long count = heavyHitters.get(fields[1]);
+				final long increment = Long.parseLong(fields[2]);
+				heavyHitters.put(fields[1], count == null ? increment : count
+						+ increment);
+			}
+		}
+		// Keep the size bounded: subtract the count of the first counter
+		// exceeding the capacity.
+		if (heavyHitters.size() > HEAVY_HITTERS) {
+			final List<Long> counts = new ArrayList<>(heavyHitters.values());
+			Collections.sort(counts, Collections.reverseOrder());
+			final long amount = counts.get(HEAVY_HITTERS);
+			final Iterator<Map.Entry<String, Long>> iter = heavyHitters
+					.entrySet().iterator();
+			while (iter.hasNext()) {
+				final Map.Entry<String, Long> entry = iter.next();
+				if (entry.getValue() <= amount) {
+					iter.remove();
+				} else {
+					entry.setValue(entry.getValue() - amount);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the bound on the over-estimation of a count by the Count-Min
+	 * sketch, which holds with probability 1 - e^-depth.
+	 *
+	 * @return the error bound.
+	 */
+	long getCountError() {
+		return (long) Math.ceil(Math.E / CMS_WIDTH * total);
+	}
+
+	/**
+	 * Returns the estimated number of distinct words (HyperLogLog, with the
+	 * linear counting correction for small cardinalities).
+	 *
+	 * @return the estimated number of distinct words.
+	 */
+	long getDistinctWords() {
+		final int m = hll.length;
+		double sum = 0;
+		int zeros = 0;
+		for (final byte register : hll) {
+			sum += Math.pow(2, -register);
+			if (register == 0) {
+				zeros++;
+			}
+		}
+		final double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) {
+			return Math.round(m * Math.log((double) m / zeros));
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Returns the relative standard error of the number of distinct words.
+	 *
+	 * @return the relative standard error.
+	 */
+	double getDistinctWordsError() {
+		return 1.04 / Math.sqrt(hll.length);
+	}
+
+	/**
+	 * Returns the bound on the under-estimation of a count by the Misra-Gries
+	 * summary.
+	 *
+	 * @return the error bound.
+	 */
+	long getHeavyHitterError() {
+		return total / (HEAVY_HITTERS + 1);
+	}
+
+	/**
+	 * Returns the number of words summarized.
+	 *
+	 * @return the number of words.
+	 */
+	long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns the most frequent words, as "word:estimate [lower, upper]"
+	 * lines. The lower bound comes from the Misra-Gries summary, which never
+	 * over-estimates; the estimate is the upper bound given by both the
+	 * Count-Min sketch and the Misra-Gries error bound.
+	 *
+	 * @param n
+	 *            the number of words.
+	 * @return the top words, by decreasing estimate.
+	 */
+	List<String> getTopWords(final int n) {
+		final Map<String, Long> estimates = new HashMap<>();
+		for (final String word : heavyHitters.keySet()) {
+			final long h = hash(word);
+			final int h1 = (int) h;
+			final int h2 = (int) (h >>> 32);
+			long estimate = Long.MAX_VALUE;
+			for (int row = 0; row < CMS_DEPTH; row++) {
+				estimate = Math.min(estimate, cms[row][((h1 + row * h2) & Integer.MAX_VALUE)
+						% CMS_WIDTH]);
+			}
+			// The Misra-Gries summary also bounds the count from above.
+			estimates.put(word, Math.min(estimate, heavyHitters.get(word)
+					+ getHeavyHitterError()));
+		}
+		final List<String> words = new ArrayList<>(estimates.keySet());
+		Collections.sort(words, new Comparator<String>() {
+			@Override
+			public int compare(final String o1, final String o2) {
+				return Long.compare(estimates.get(o2), estimates.get(o1));
+			}
+		});
+		final List<String> topWords = new ArrayList<>();
+		for (final String word : words.subList(0, Math.min(n, words.size()))) {
+			final long upper = estimates.get(word);
+			topWords.add(word + ":" + upper + " [" + heavyHitters.get(word)
+					+ ", " + upper + "]");
+		}
+		return topWords;
+	}
+
+}
@@ -4,12 +4,15 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
 /**
  * This class handles the remote execution of a specific slave in a dedicated
@@ -22,19 +25,33 @@ class SlaveThread extends Thread {
 	public static final boolean DEBUG = false; // whether local execution of
 												// slaves is turned on (for
 												// debugging)
-	public static final String SLAVE_JAR = "/cal/homes/tguzelbodur/SlaveShavadoop.jar"; 
+	public static final String SLAVE_JAR = System.getProperty("shavadoop.slave.jar",
+			"/cal/homes/tguzelbodur/SlaveShavadoop.jar"); // the slave jar on the slave hosts
+	public static final List<String> REMOTE_SHELL = Arrays.asList(System.getProperty("shavadoop.ssh", "/usr/bin/ssh")
+			.split(" ")); // the command, followed by the slave host, running a command on the slave host
+	public static final List<String> FORWARDED_PROPERTIES = Arrays.asList("shavadoop.filter.", "shavadoop.trace"); // the prefixes of the properties given to the slaves
 	
 
 	/**
-	 * Creates a SlaveThread instance to manage the execution of the "MAP"
-	 * command on the designated slave host.
+	 * Creates a SlaveThread instance to manage the execution of a command
+	 * processing a batch of split files ("MAP" or "SKETCH") on the designated
+	 * slave host.
 	 *
 	 * @param host
 	 *            the slave host.
+	 * @param command
+	 *            the command.
+	 * @param args
+	 *            the parameters of the command preceding the split files.
+	 * @param splitFiles
+	 *            the batch of split files to process.
 	 * @return the SlaveThread instance.
 	 */
-	static SlaveThread createMapSlaveThread(final String host, final String splitFile) {
-		return new SlaveThread(host, "MAP", Arrays.asList(splitFile));
+	static SlaveThread createBatchSlaveThread(final String host, final String command, final List<String> args,
+			final List<String> splitFiles) {
+		final List<String> params = new ArrayList<>(args);
+		params.addAll(splitFiles);
+		return new SlaveThread(host, command, params);
 	}
 
 	/**
@@ -49,25 +66,70 @@ class SlaveThread extends Thread {
 		return new SlaveThread(host, "PING", Collections.<String>emptyList());
 	}
 
+	/**
+	 * Creates a SlaveThread instance to manage the execution of the "PROBE"
+	 * command on the designated slave host.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @return the SlaveThread instance.
+	 */
+	static SlaveThread createProbeSlaveThread(final String host) {
+		return new SlaveThread(host, "PROBE", Collections.<String>emptyList());
+	}
+
+	/**
+	 * Creates a SlaveThread instance to manage the execution of the "SERVE"
+	 * command on the designated slave host. The thread runs until the
+	 * transfer service is stopped. The service listens on the address of the
+	 * host name, so that it is only reachable the way the master reaches it.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param port
+	 *            the port of the transfer service.
+	 * @param dir
+	 *            the local directory of the slave host to serve.
+	 * @param token
+	 *            the token of the job, required by the service.
+	 * @return the SlaveThread instance.
+	 */
+	static SlaveThread createServeSlaveThread(final String host, final int port, final String dir,
+			final String token) {
+		final SlaveThread slaveThread = new SlaveThread(host, "SERVE", Arrays.asList(host, String.valueOf(port), dir));
+		slaveThread.setToken(token);
+		return slaveThread;
+	}
+
 	/**
 	 * Creates a SlaveThread instance to manage the execution of the
 	 * "SHUFFLE_REDUCE" command on the designated slave host.
 	 *
 	 * @param host
 	 *            the slave host.
+	 * @param job
+	 *            the name of the job.
+	 * @param reducedMapFile
+	 *            the reduced map file of the partition.
+	 * @param total
+	 *            whether to also reduce all the inputs together.
+	 * @param segments
+	 *            the segments of the map files holding the partition.
 	 * @return the SlaveThread instance.
 	 */
-	static SlaveThread createReduceShuffleSlaveThread(final String host, final String key, final String reducedMapFile,
-			final Set<String> unsortedMapfiles) {
+	static SlaveThread createReduceShuffleSlaveThread(final String host, final String job, final String reducedMapFile,
+			final boolean total, final List<String> segments) {
 		final List<String> params = new ArrayList<>();
-		params.add(key);
+		params.add(job);
 		params.add(reducedMapFile);
-		params.addAll(unsortedMapfiles);
+		params.add(String.valueOf(total));
+		params.addAll(segments);
 		return new SlaveThread(host, "SHUFFLE_REDUCE", params);
 	}
 
 	protected final String command; // the command to execute remotely ("PING",
-									// "MAP", "SHUFFLE_REDUCE")
+									// "PROBE", "MAP", "SHUFFLE_REDUCE",
+									// "SKETCH", "SERVE")
 
 	protected final String host; // the (remote) slave host
 
@@ -77,6 +139,20 @@ class SlaveThread extends Thread {
 	protected final List<String> params; // the parameters of the command to
 											// execute
 
+	protected List<String> uploads = Collections.emptyList(); // the files to push first
+
+	protected int uploadPort; // the port of the transfer service of the slave
+								// host
+
+	protected String token = null; // the token of the transfer services, given to the command on its standard input
+
+	protected final int task = JobTrace.newTask(); // the task traced for the
+													// command
+
+	private Process process; // the process running the command, once started
+
+	private boolean killed; // whether the command was killed
+
 	/**
 	 * Creates an instance of SlaveThread to manage the specified
 	 * command/parameters on the specified slave host.
@@ -103,6 +179,16 @@ class SlaveThread extends Thread {
 		return host;
 	}
 
+	/**
+	 * Returns the parameters of the command executed by this SlaveThread
+	 * instance.
+	 *
+	 * @return the parameters of the command.
+	 */
+	List<String> getParams() {
+		return params;
+	}
+
 	/**
 	 * Returns the output (result) of the remote execution.
 	 *
@@ -113,7 +199,45 @@ class SlaveThread extends Thread {
 	}
 
 	/**
-	 * Reads from the provided input stream until EOF condition reached.
+	 * Sets the local files to push to the transfer service of the slave host
+	 * before executing the command.
+	 *
+	 * @param port
+	 *            the port of the transfer service.
+	 * @param files
+	 *            the local files.
+	 */
+	void setUploads(final int port, final List<String> files) {
+		this.uploadPort = port;
+		this.uploads = files;
+	}
+
+	/**
+	 * Sets the token of the transfer services, which the command is given on
+	 * its standard input rather than on its command line, and which the
+	 * uploads carry.
+	 *
+	 * @param token
+	 *            the token of the job.
+	 */
+	void setToken(final String token) {
+		this.token = token;
+	}
+
+	/**
+	 * Kills the process running the command, if any, or prevents it from
+	 * being started.
+	 */
+	synchronized void kill() {
+		killed = true;
+		if (process != null) {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Reads from the provided input stream until EOF condition reached. The
+	 * spans traced by the slave are recorded instead of being returned.
 	 *
 	 * @param is
 	 *            the input stream.
@@ -126,7 +250,9 @@ class SlaveThread extends Thread {
 		try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
 			String line;
 			while ((line = reader.readLine()) != null) {
-				if (line.length() > 0) {
+				if (line.startsWith("TRACE ")) {
+					JobTrace.addSlaveSpan(host, task, line);
+				} else if (line.length() > 0) {
 					list.add(line);
 				}
 			}
@@ -152,10 +278,18 @@ class SlaveThread extends Thread {
 			throws IOException, InterruptedException {
 		final List<String> cmd = new ArrayList<>();
 		if (!DEBUG) {
-			cmd.add("/usr/bin/ssh");
+			cmd.addAll(REMOTE_SHELL);
 			cmd.add(host);
 		}
 		cmd.add("java");
+		for (final String name : System.getProperties().stringPropertyNames()) {
+			for (final String prefix : FORWARDED_PROPERTIES) {
+				if (name.startsWith(prefix)) {
+					cmd.add("-D" + name + "=" + System.getProperty(name));
+					break;
+				}
+			}
+		}
 		cmd.add("-jar");
 		cmd.add(SLAVE_JAR);
 		cmd.add(command);
@@ -167,7 +301,19 @@ class SlaveThread extends Thread {
 		final ProcessBuilder pb = new ProcessBuilder(cmd.toArray(new String[0]));
 		pb.redirectError(Redirect.INHERIT); // Redirect error output from slave
 											// process to that of the master
-		final Process p = pb.start();
+		final Process p;
+		synchronized (this) {
+			if (killed) {
+				return null;
+			}
+			p = pb.start();
+			process = p;
+		}
+		try (Writer input = new OutputStreamWriter(p.getOutputStream(), "US-ASCII")) {
+			if (token != null) {
+				input.write(token + "\n");
+			}
+		}
 		final List<String> output = read(p.getInputStream());
 		return p.waitFor() == 0 ? output : null;
 	}
@@ -178,7 +324,16 @@ class SlaveThread extends Thread {
 	 */
 	@Override
 	public void run() {
+		long launchTime = JobTrace.now();
 		try {
+			for (final String file : uploads) {
+				final Path path = Paths.get(file);
+				TransferClient.push(host, uploadPort, token, path, path.getFileName().toString());
+			}
+			if (!uploads.isEmpty()) {
+				JobTrace.add(host, task, "upload", "upload", launchTime, JobTrace.now());
+				launchTime = JobTrace.now();
+			}
 			output = remoteExec(host, command, params);
 			if (DEBUG)
 				if (output != null) {
@@ -190,6 +345,9 @@ class SlaveThread extends Thread {
 			e.printStackTrace();
 		} catch (final InterruptedException e) {
 			e.printStackTrace();
+		} finally {
+			JobTrace.add(host, task, "SERVE".equals(command) ? "service" : "task",
+					command + (output != null ? "" : " (failed)"), launchTime, JobTrace.now());
 		}
 	}
 
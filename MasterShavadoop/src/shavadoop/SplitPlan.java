@@ -0,0 +1,105 @@
+package shavadoop;
+
+/**
+ * Chooses the size of the splits of an input file from its size and the
+ * capacity of the cluster, so that each slot of the slave hosts processes a
+ * few waves of splits.
+ *
+ * The bounds and the number of waves can be tuned with the
+ * "shavadoop.split.min", "shavadoop.split.max" (in bytes) and
+ * "shavadoop.split.waves" system properties.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class SplitPlan {
+	public static final long MIN_SPLIT_SIZE = Long.getLong(
+			"shavadoop.split.min", 64L * 1024); // the minimum size of a split,
+												// in bytes
+	public static final long MAX_SPLIT_SIZE = Long.getLong(
+			"shavadoop.split.max", 64L * 1024 * 1024); // the maximum size of a
+														// split, in bytes
+	public static final int WAVES_PER_SLOT = Integer.getInteger(
+			"shavadoop.split.waves", 3); // the number of splits targeted per
+											// slot
+
+	/**
+	 * Plans the splits of an input file.
+	 *
+	 * @param inputSize
+	 *            the size of the input file, in bytes.
+	 * @param slaves
+	 *            the number of reachable slave hosts.
+	 * @param slots
+	 *            the total number of slots of the reachable slave hosts.
+	 * @return the split plan.
+	 */
+	static SplitPlan plan(final long inputSize, final int slaves,
+			final int slots) {
+		final long targetSplits = Math.max(1, (long) slots * WAVES_PER_SLOT);
+		final long targetSize = (inputSize + targetSplits - 1) / targetSplits;
+		final long splitSize = Math.max(MIN_SPLIT_SIZE,
+				Math.min(MAX_SPLIT_SIZE, targetSize));
+		final StringBuilder rationale = new StringBuilder();
+		rationale.append(inputSize).append(" bytes, ").append(slots)
+				.append(" slots on ").append(slaves).append(" hosts x ")
+				.append(WAVES_PER_SLOT).append(" waves = ")
+				.append(targetSplits).append(" splits of ").append(targetSize)
+				.append(" bytes");
+		if (splitSize != targetSize) {
+			rationale.append(", clamped to ").append(splitSize)
+					.append(" bytes [").append(MIN_SPLIT_SIZE).append(", ")
+					.append(MAX_SPLIT_SIZE).append("]");
+		}
+		return new SplitPlan(splitSize, Math.max(1,
+				(inputSize + splitSize - 1) / splitSize), rationale.toString());
+	}
+
+	private final long splitCount; // the expected number of splits
+
+	private final long splitSize; // the size of a split, in bytes
+
+	private final String rationale; // how the plan was chosen
+
+	/**
+	 * Creates an instance of SplitPlan.
+	 *
+	 * @param splitSize
+	 *            the size of a split, in bytes.
+	 * @param splitCount
+	 *            the expected number of splits.
+	 * @param rationale
+	 *            how the plan was chosen.
+	 */
+	private SplitPlan(final long splitSize, final long splitCount,
+			final String rationale) {
+		this.splitSize = splitSize;
+		this.splitCount = splitCount;
+		this.rationale = rationale;
+	}
+
+	/**
+	 * Returns the expected number of splits.
+	 *
+	 * @return the number of splits.
+	 */
+	long getSplitCount() {
+		return splitCount;
+	}
+
+	/**
+	 * Returns the size of a split.
+	 *
+	 * @return the size of a split, in bytes.
+	 */
+	long getSplitSize() {
+		return splitSize;
+	}
+
+	@Override
+	public String toString() {
+		return splitCount + " splits of " + splitSize + " bytes (" + rationale
+				+ ")";
+	}
+
+}
@@ -0,0 +1,210 @@
+package shavadoop;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Talks to the transfer service run by the slave hosts (the "SERVE" command),
+ * which lets the master push the split files to hosts that do not share its
+ * filesystem. Every request carries the token of the job, which the services
+ * require. See the TransferService class of the slave for the protocol.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class TransferClient {
+	public static final long READY_TIMEOUT = 60000; // the delay to wait for a
+													// service to start, in ms
+	private static final byte OK = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Waits until the transfer service of a slave host accepts connections.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param port
+	 *            the port of its service.
+	 * @throws IOException
+	 *             if the host is unknown or the service is still not
+	 *             reachable after the timeout.
+	 */
+	static void awaitReady(final String host, final int port)
+			throws IOException {
+		final long deadline = System.currentTimeMillis() + READY_TIMEOUT;
+		final InetSocketAddress address = resolve(host, port);
+		while (true) {
+			try {
+				SocketChannel.open(address).close();
+				return;
+			} catch (final IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+			}
+			try {
+				Thread.sleep(200);
+			} catch (final InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Computes the CRC32 checksum of a file, through a mapping of the file
+	 * rather than a copy of its content.
+	 *
+	 * @param channel
+	 *            the file channel.
+	 * @return the checksum.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private static long checksum(final FileChannel channel) throws IOException {
+		final CRC32 crc = new CRC32();
+		final long size = channel.size();
+		for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+			crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.min(Integer.MAX_VALUE, size - position)));
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Generates a new token for a job, 16 random bytes in hexadecimal.
+	 *
+	 * @return the token, of 32 ASCII characters.
+	 */
+	static String newToken() {
+		final byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		final StringBuilder token = new StringBuilder(2 * bytes.length);
+		for (final byte b : bytes) {
+			token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+					Character.forDigit(b & 0xF, 16));
+		}
+		return token.toString();
+	}
+
+	/**
+	 * Pushes a file to the transfer service of a slave host, which verifies
+	 * its checksum before storing it.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param port
+	 *            the port of its service.
+	 * @param token
+	 *            the token of the job.
+	 * @param file
+	 *            the local file.
+	 * @param name
+	 *            the name of the file in the directory served by the host.
+	 * @throws IOException
+	 *             if any I/O error occurred or the host rejected the file.
+	 */
+	static void push(final String host, final int port, final String token,
+			final Path file, final String name) throws IOException {
+		try (SocketChannel socket = SocketChannel.open(resolve(host, port));
+				FileChannel channel = FileChannel.open(file,
+						StandardOpenOption.READ)) {
+			final byte[] nameBytes = name.getBytes(UTF8);
+			final long size = channel.size();
+			final byte[] tokenBytes = token.getBytes(UTF8);
+			final ByteBuffer request = ByteBuffer.allocate(tokenBytes.length
+					+ 1 + 2 + nameBytes.length + 8 + 8);
+			request.put(tokenBytes).put((byte) 'P').putShort((short) nameBytes.length)
+					.put(nameBytes).putLong(size).putLong(checksum(channel));
+			request.flip();
+			while (request.hasRemaining()) {
+				socket.write(request);
+			}
+			for (long position = 0; position < size;) {
+				position += channel.transferTo(position, size - position,
+						socket);
+			}
+			if (readStatus(socket) != OK) {
+				throw new IOException("Transfer of " + file + " to " + host
+						+ " failed");
+			}
+		}
+	}
+
+	/**
+	 * Stops the transfer service of a slave host.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param port
+	 *            the port of its service.
+	 * @param token
+	 *            the token of the job.
+	 * @throws IOException
+	 *             if any I/O error occurred or the host rejected the request.
+	 */
+	static void quit(final String host, final int port, final String token)
+			throws IOException {
+		try (SocketChannel socket = SocketChannel.open(resolve(host, port))) {
+			final ByteBuffer request = ByteBuffer.wrap((token + "Q")
+					.getBytes(UTF8));
+			while (request.hasRemaining()) {
+				socket.write(request);
+			}
+			if (readStatus(socket) != OK) {
+				throw new IOException("Transfer service of " + host
+						+ " did not quit");
+			}
+		}
+	}
+
+	/**
+	 * Resolves the address of the transfer service of a slave host.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param port
+	 *            the port of its service.
+	 * @return the address of the service.
+	 * @throws IOException
+	 *             if the host is unknown.
+	 */
+	private static InetSocketAddress resolve(final String host, final int port)
+			throws IOException {
+		final InetSocketAddress address = new InetSocketAddress(host, port);
+		if (address.isUnresolved()) {
+			throw new UnknownHostException(host);
+		}
+		return address;
+	}
+
+	/**
+	 * Reads the status byte of a response.
+	 *
+	 * @param socket
+	 *            the socket channel.
+	 * @return the status.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private static byte readStatus(final SocketChannel socket)
+			throws IOException {
+		final ByteBuffer status = ByteBuffer.allocate(1);
+		while (status.hasRemaining()) {
+			if (socket.read(status) < 0) {
+				throw new EOFException();
+			}
+		}
+		return status.get(0);
+	}
+
+}
@@ -0,0 +1,30 @@
+package shavadoop;
+
+/**
+ * Combines two values of the same key into one, so that the map stage emits
+ * a single value per key and batch.
+ *
+ * The engine may combine the values in any order and grouping, any number of
+ * times: the combination must be associative and commutative, and the
+ * reducer must produce the same result from the combined values as from the
+ * original ones.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ * @param <V>
+ *            the type of the values.
+ */
+interface Combiner<V> {
+
+	/**
+	 * Combines two values.
+	 *
+	 * @param value1
+	 *            the first value.
+	 * @param value2
+	 *            the second value.
+	 * @return the combined value.
+	 */
+	V combine(V value1, V value2);
+
+}
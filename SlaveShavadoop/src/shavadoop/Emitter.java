@@ -0,0 +1,26 @@
+package shavadoop;
+
+/**
+ * Receives the key/value pairs produced by a {@link Mapper} or a
+ * {@link Reducer}.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ * @param <K>
+ *            the type of the keys.
+ * @param <V>
+ *            the type of the values.
+ */
+interface Emitter<K, V> {
+
+	/**
+	 * Emits a key/value pair.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param value
+	 *            the value.
+	 */
+	void emit(K key, V value);
+
+}
@@ -0,0 +1,28 @@
+package shavadoop;
+
+/**
+ * Formats the results of a job as the lines of its output, which the slaves
+ * pass to the master and the master writes to the output file.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ * @param <K>
+ *            the type of the keys.
+ * @param <V>
+ *            the type of the values.
+ */
+interface Formatter<K, V> {
+
+	/**
+	 * Formats an output key/value pair as a line of the result of the job.
+	 * The line must not hold any line separator.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param value
+	 *            the value.
+	 * @return the line.
+	 */
+	String format(K key, V value);
+
+}
@@ -0,0 +1,177 @@
+package shavadoop;
+
+import java.util.Arrays;
+
+/**
+ * Describes a MapReduce job: how to map the lines of the input, combine and
+ * reduce the values of a key, serialize the keys and values between the
+ * stages and format the results as the lines of the output. The engine
+ * partitions the keys by the hash of their binary form and sorts each
+ * partition by {@link RecordWriter#KEY_ORDER}; the results of a partition
+ * may then be sorted by decreasing rank of their value.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ * @param <K>
+ *            the type of the keys.
+ * @param <V>
+ *            the type of the values.
+ */
+final class Job<K, V> {
+
+	/**
+	 * Returns the job registered under the specified name.
+	 *
+	 * @param name
+	 *            the name of the job.
+	 * @return the job.
+	 */
+	static Job<?, ?> forName(final String name) {
+		if ("wordcount".equals(name)) {
+			return WordCount.createJob();
+		}
+		throw new IllegalArgumentException("Unknown job: " + name);
+	}
+
+	private final Combiner<V> combiner; // the combiner of the values of a key
+
+	private final Formatter<K, V> formatter; // the formatter of the results
+
+	private final Serializer<K> keySerializer; // the serializer of the keys
+
+	private final Mapper<K, V> mapper; // the mapper of the input lines
+
+	private final String name; // the name of the job
+
+	private final Ranker<V> ranker; // the ranker of the results, or null to
+									// keep them in key order
+
+	private final Reducer<K, V> reducer; // the reducer of the values of a key
+
+	private final Serializer<V> valueSerializer; // the serializer of the values
+
+	/**
+	 * Creates an instance of Job.
+	 *
+	 * @param name
+	 *            the name of the job.
+	 * @param mapper
+	 *            the mapper of the input lines.
+	 * @param combiner
+	 *            the combiner of the values of a key.
+	 * @param reducer
+	 *            the reducer of the values of a key.
+	 * @param keySerializer
+	 *            the serializer of the keys.
+	 * @param valueSerializer
+	 *            the serializer of the values.
+	 * @param formatter
+	 *            the formatter of the results.
+	 * @param ranker
+	 *            the ranker of the results of a partition, or null to keep
+	 *            them in key order.
+	 */
+	Job(final String name, final Mapper<K, V> mapper, final Combiner<V> combiner, final Reducer<K, V> reducer,
+			final Serializer<K> keySerializer, final Serializer<V> valueSerializer, final Formatter<K, V> formatter,
+			final Ranker<V> ranker) {
+		if (mapper == null || combiner == null || reducer == null || keySerializer == null
+				|| valueSerializer == null || formatter == null) {
+			throw new IllegalArgumentException("Incomplete job: " + name);
+		}
+		this.name = name;
+		this.mapper = mapper;
+		this.combiner = combiner;
+		this.reducer = reducer;
+		this.keySerializer = keySerializer;
+		this.valueSerializer = valueSerializer;
+		this.formatter = formatter;
+		this.ranker = ranker;
+	}
+
+	/**
+	 * Returns the combiner of the values of a key.
+	 *
+	 * @return the combiner of the values of a key.
+	 */
+	Combiner<V> getCombiner() {
+		return combiner;
+	}
+
+	/**
+	 * Returns the formatter of the results.
+	 *
+	 * @return the formatter of the results.
+	 */
+	Formatter<K, V> getFormatter() {
+		return formatter;
+	}
+
+	/**
+	 * Returns the serializer of the keys.
+	 *
+	 * @return the serializer of the keys.
+	 */
+	Serializer<K> getKeySerializer() {
+		return keySerializer;
+	}
+
+	/**
+	 * Returns the mapper of the input lines.
+	 *
+	 * @return the mapper of the input lines.
+	 */
+	Mapper<K, V> getMapper() {
+		return mapper;
+	}
+
+	/**
+	 * Returns the name of the job.
+	 *
+	 * @return the name of the job.
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the ranker of the results of a partition.
+	 *
+	 * @return the ranker, or null if the results are kept in key order.
+	 */
+	Ranker<V> getRanker() {
+		return ranker;
+	}
+
+	/**
+	 * Returns the reducer of the values of a key.
+	 *
+	 * @return the reducer of the values of a key.
+	 */
+	Reducer<K, V> getReducer() {
+		return reducer;
+	}
+
+	/**
+	 * Returns the serializer of the values.
+	 *
+	 * @return the serializer of the values.
+	 */
+	Serializer<V> getValueSerializer() {
+		return valueSerializer;
+	}
+
+	/**
+	 * Returns the partition of a key, from the hash of its binary form so that
+	 * it does not depend on the JVM of the map task.
+	 *
+	 * @param key
+	 *            the binary form of the key.
+	 * @param partitions
+	 *            the number of partitions.
+	 * @return the partition, between 0 and partitions - 1.
+	 */
+	int partition(final byte[] key, final int partitions) {
+		return (Arrays.hashCode(key) & Integer.MAX_VALUE) % partitions;
+	}
+
+}
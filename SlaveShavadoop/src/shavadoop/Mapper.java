@@ -0,0 +1,25 @@
+package shavadoop;
+
+/**
+ * Turns the lines of the split files into key/value pairs.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ * @param <K>
+ *            the type of the keys.
+ * @param <V>
+ *            the type of the values.
+ */
+interface Mapper<K, V> {
+
+	/**
+	 * Maps a line. Called concurrently for the splits of a batch.
+	 *
+	 * @param line
+	 *            the line.
+	 * @param output
+	 *            the emitter to pass the key/value pairs to.
+	 */
+	void map(String line, Emitter<K, V> output);
+
+}
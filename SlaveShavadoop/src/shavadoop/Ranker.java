@@ -0,0 +1,24 @@
+package shavadoop;
+
+/**
+ * Ranks the results of a job by value, so that its output is sorted by
+ * decreasing rank. The rank is printed along with each result, so that the
+ * master can merge the partitions in the same order.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ * @param <V>
+ *            the type of the values.
+ */
+interface Ranker<V> {
+
+	/**
+	 * Returns the rank of a value.
+	 *
+	 * @param value
+	 *            the value.
+	 * @return the rank.
+	 */
+	long rank(V value);
+
+}
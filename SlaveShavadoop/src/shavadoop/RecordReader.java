@@ -0,0 +1,146 @@
+package shavadoop;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the key/value records written by a {@link RecordWriter} from a region
+ * of a file.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class RecordReader implements Closeable {
+	private final InputStream in; // the input stream over the region
+
+	private byte[] key; // the binary form of the key of the current record
+
+	private long remaining; // the number of bytes left in the region
+
+	private int source; // the source of the current record
+
+	private byte[] value; // the binary form of the value of the current record
+
+	/**
+	 * Creates an instance of RecordReader.
+	 *
+	 * @param file
+	 *            the file.
+	 * @param offset
+	 *            the offset of the region.
+	 * @param length
+	 *            the length of the region.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	RecordReader(final Path file, final long offset, final long length) throws IOException {
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		channel.position(offset);
+		in = new BufferedInputStream(Channels.newInputStream(channel));
+		remaining = length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Returns the binary form of the key of the current record.
+	 *
+	 * @return the key.
+	 */
+	byte[] getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the source of the current record.
+	 *
+	 * @return the index of the input the record comes from, or a negative
+	 *         value for a combination of inputs.
+	 */
+	int getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns the binary form of the value of the current record.
+	 *
+	 * @return the value.
+	 */
+	byte[] getValue() {
+		return value;
+	}
+
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return false if the end of the region was reached.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	boolean next() throws IOException {
+		if (remaining <= 0) {
+			key = null;
+			value = null;
+			return false;
+		}
+		key = readBytes();
+		source = readVarInt();
+		value = readBytes();
+		return true;
+	}
+
+	/**
+	 * Reads a length-prefixed byte array.
+	 *
+	 * @return the byte array.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private byte[] readBytes() throws IOException {
+		final int length = readVarInt();
+		final byte[] bytes = new byte[length];
+		int read = 0;
+		while (read < length) {
+			final int count = in.read(bytes, read, length - read);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			read += count;
+		}
+		remaining -= length;
+		return bytes;
+	}
+
+	/**
+	 * Reads a variable-length integer.
+	 *
+	 * @return the integer.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private int readVarInt() throws IOException {
+		int n = 0;
+		for (int shift = 0;; shift += 7) {
+			final int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			remaining--;
+			n |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return n;
+			}
+		}
+	}
+
+}
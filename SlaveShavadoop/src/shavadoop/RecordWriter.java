@@ -0,0 +1,104 @@
+package shavadoop;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Comparator;
+
+/**
+ * Writes key/value records in their binary form: the length of the key as a
+ * variable-length integer, the key, the source of the record (the index of
+ * the input it comes from, or a negative value for a combination of inputs)
+ * as a variable-length integer, the length of the value, the value.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class RecordWriter implements Closeable {
+	/**
+	 * The order of the records of a partition: the unsigned lexicographic
+	 * order of the binary form of their keys.
+	 */
+	static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare(final byte[] key1, final byte[] key2) {
+			final int length = Math.min(key1.length, key2.length);
+			for (int i = 0; i < length; i++) {
+				final int diff = (key1[i] & 0xFF) - (key2[i] & 0xFF);
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return key1.length - key2.length;
+		}
+	};
+
+	private final OutputStream out; // the output stream
+
+	private long position = 0; // the number of bytes written
+
+	/**
+	 * Creates an instance of RecordWriter.
+	 *
+	 * @param out
+	 *            the output stream.
+	 */
+	RecordWriter(final OutputStream out) {
+		this.out = new BufferedOutputStream(out);
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 *
+	 * @return the number of bytes.
+	 */
+	long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Writes a record.
+	 *
+	 * @param key
+	 *            the binary form of the key.
+	 * @param source
+	 *            the source of the record.
+	 * @param value
+	 *            the binary form of the value.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void write(final byte[] key, final int source, final byte[] value) throws IOException {
+		writeVarInt(key.length);
+		out.write(key);
+		writeVarInt(source);
+		writeVarInt(value.length);
+		out.write(value);
+		position += key.length + value.length;
+	}
+
+	/**
+	 * Writes a variable-length integer.
+	 *
+	 * @param n
+	 *            the integer.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void writeVarInt(int n) throws IOException {
+		while ((n & ~0x7F) != 0) {
+			out.write((n & 0x7F) | 0x80);
+			n >>>= 7;
+			position++;
+		}
+		out.write(n);
+		position++;
+	}
+
+}
@@ -0,0 +1,30 @@
+package shavadoop;
+
+import java.util.Iterator;
+
+/**
+ * Reduces all the values of a key into the output of the job.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ * @param <K>
+ *            the type of the keys.
+ * @param <V>
+ *            the type of the values.
+ */
+interface Reducer<K, V> {
+
+	/**
+	 * Reduces the values of a key. The keys of a partition are reduced in the
+	 * order of their binary form.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param values
+	 *            the values of the key, one per map output.
+	 * @param output
+	 *            the emitter to pass the output key/value pairs to.
+	 */
+	void reduce(K key, Iterator<V> values, Emitter<K, V> output);
+
+}
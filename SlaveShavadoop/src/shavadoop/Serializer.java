@@ -0,0 +1,33 @@
+package shavadoop;
+
+/**
+ * Converts the keys or values of a job to and from their binary form, as
+ * stored in the records moved between the stages. Records are length-prefixed,
+ * so that the binary form needs not delimit itself.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ * @param <T>
+ *            the type of the keys or values.
+ */
+interface Serializer<T> {
+
+	/**
+	 * Reads a value from its binary form.
+	 *
+	 * @param bytes
+	 *            the binary form.
+	 * @return the value.
+	 */
+	T deserialize(byte[] bytes);
+
+	/**
+	 * Returns the binary form of a value.
+	 *
+	 * @param value
+	 *            the value.
+	 * @return the binary form.
+	 */
+	byte[] serialize(T value);
+
+}
@@ -0,0 +1,66 @@
+package shavadoop;
+
+import java.nio.charset.Charset;
+
+/**
+ * The serializers of the common key and value types.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+final class Serializers {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Serializes non-negative longs as variable-length integers: 7 bits per
+	 * byte, least significant first, the high bit marking the bytes followed
+	 * by another one.
+	 */
+	static final Serializer<Long> LONG = new Serializer<Long>() {
+		@Override
+		public Long deserialize(final byte[] bytes) {
+			long value = 0;
+			for (int i = 0; i < bytes.length; i++) {
+				value |= (long) (bytes[i] & 0x7F) << (7 * i);
+			}
+			return value;
+		}
+
+		@Override
+		public byte[] serialize(final Long value) {
+			long v = value;
+			final byte[] buffer = new byte[10];
+			int length = 0;
+			while ((v & ~0x7FL) != 0) {
+				buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buffer[length++] = (byte) v;
+			final byte[] bytes = new byte[length];
+			System.arraycopy(buffer, 0, bytes, 0, length);
+			return bytes;
+		}
+	};
+
+	/**
+	 * Serializes strings as their UTF-8 encoding.
+	 */
+	static final Serializer<String> STRING = new Serializer<String>() {
+		@Override
+		public String deserialize(final byte[] bytes) {
+			return new String(bytes, UTF8);
+		}
+
+		@Override
+		public byte[] serialize(final String value) {
+			return value.getBytes(UTF8);
+		}
+	};
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private Serializers() {
+	}
+
+}
@@ -1,17 +1,30 @@
 package shavadoop;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
 
 /**
  * Implements the Shavadoop slave.
@@ -24,137 +37,26 @@ public class Slave {
 	// whether local execution of
 	// slaves is turned on (for
 	// debugging)
-	private final static Set<String> REJECTED_WORDS;
-	
-	static {
-		REJECTED_WORDS = new HashSet<String>();
-		REJECTED_WORDS.add("le");
-		REJECTED_WORDS.add("ou");
-		REJECTED_WORDS.add("aux");
-		REJECTED_WORDS.add("de");
-		REJECTED_WORDS.add("des");
-		REJECTED_WORDS.add("la");
-		REJECTED_WORDS.add("les");
-		REJECTED_WORDS.add("je");
-		REJECTED_WORDS.add("l");
-		REJECTED_WORDS.add("nous");
-		REJECTED_WORDS.add("tu");
-		REJECTED_WORDS.add("il");
-		REJECTED_WORDS.add("ils");
-		REJECTED_WORDS.add("elle");
-		REJECTED_WORDS.add("elles");
-		REJECTED_WORDS.add("lui");
-		REJECTED_WORDS.add("vous");
-		REJECTED_WORDS.add("leur");
-		REJECTED_WORDS.add("eux");
-		REJECTED_WORDS.add("celui");
-		REJECTED_WORDS.add("celle");
-		REJECTED_WORDS.add("ceux-là");
-		REJECTED_WORDS.add("celui-ci");
-		REJECTED_WORDS.add("celui-là");
-		REJECTED_WORDS.add("celle-ci");
-		REJECTED_WORDS.add("celle-là");
-		REJECTED_WORDS.add("ceci");
-		REJECTED_WORDS.add("cela");
-		REJECTED_WORDS.add("ça");
-		REJECTED_WORDS.add("celles-ci");
-		REJECTED_WORDS.add("celles-là");
-		REJECTED_WORDS.add("mien");
-		REJECTED_WORDS.add("nôtre");
-		REJECTED_WORDS.add("tien");
-		REJECTED_WORDS.add("sien");
-		REJECTED_WORDS.add("vôtre");
-		REJECTED_WORDS.add("leur");
-		REJECTED_WORDS.add("mienne");
-		REJECTED_WORDS.add("tienne");
-		REJECTED_WORDS.add("sienne");
-		REJECTED_WORDS.add("miens");
-		REJECTED_WORDS.add("tiens");
-		REJECTED_WORDS.add("siens");
-		REJECTED_WORDS.add("nôtres");
-		REJECTED_WORDS.add("vôtres");
-		REJECTED_WORDS.add("leurs");
-		REJECTED_WORDS.add("miennes");
-		REJECTED_WORDS.add("tiennes");
-		REJECTED_WORDS.add("siennes");
-		REJECTED_WORDS.add("on");
-		REJECTED_WORDS.add("personne");
-		REJECTED_WORDS.add("rien");
-		REJECTED_WORDS.add("aucun");
-		REJECTED_WORDS.add("aucune");
-		REJECTED_WORDS.add("nul");
-		REJECTED_WORDS.add("nulle");
-		REJECTED_WORDS.add("un");
-		REJECTED_WORDS.add("une");
-		REJECTED_WORDS.add("autre");
-		REJECTED_WORDS.add("pas");
-		REJECTED_WORDS.add("tout");
-		REJECTED_WORDS.add("quelqu");
-		REJECTED_WORDS.add("quelque");
-		REJECTED_WORDS.add("certains");
-		REJECTED_WORDS.add("certaine");
-		REJECTED_WORDS.add("certain");
-		REJECTED_WORDS.add("certaines");
-		REJECTED_WORDS.add("plusieurs");
-		REJECTED_WORDS.add("tous");
-		REJECTED_WORDS.add("qui");
-		REJECTED_WORDS.add("que");
-		REJECTED_WORDS.add("quoi");
-		REJECTED_WORDS.add("dont");
-		REJECTED_WORDS.add("où");
-		REJECTED_WORDS.add("lequel");
-		REJECTED_WORDS.add("laquelle");
-		REJECTED_WORDS.add("duquel");
-		REJECTED_WORDS.add("auquel");
-		REJECTED_WORDS.add("lesquels");
-		REJECTED_WORDS.add("desquels");
-		REJECTED_WORDS.add("lesquelles");
-		REJECTED_WORDS.add("desquelles");
-		REJECTED_WORDS.add("auxquelles");
-		REJECTED_WORDS.add("laquelle");
-		REJECTED_WORDS.add("à");
-		REJECTED_WORDS.add("et");
-		REJECTED_WORDS.add("ne");
-		REJECTED_WORDS.add("du");
-		REJECTED_WORDS.add("en");
-		REJECTED_WORDS.add("au");
-		REJECTED_WORDS.add("pour");
-		REJECTED_WORDS.add("par");
-		REJECTED_WORDS.add("se");
-		REJECTED_WORDS.add("dans");
-		REJECTED_WORDS.add("tous");
-		REJECTED_WORDS.add("tout");
-		REJECTED_WORDS.add("est");
-		REJECTED_WORDS.add("ni");
-		REJECTED_WORDS.add("qu");
-		REJECTED_WORDS.add("être");
-		REJECTED_WORDS.add("ses");
-		REJECTED_WORDS.add("si");
-		REJECTED_WORDS.add("sont");
-		REJECTED_WORDS.add("sa");
-		REJECTED_WORDS.add("ii");
-		REJECTED_WORDS.add("iii");
-		REJECTED_WORDS.add("ier");
-		REJECTED_WORDS.add("ce");
-		REJECTED_WORDS.add("lorsqu");
-		REJECTED_WORDS.add("lorsque");
-		
-		
-		
-	}
-
+	public static final int TOTAL_SOURCE = -1; // the source of the results
+												// reduced over all the inputs
+	private String token = null; // the token of the transfer services, read
+									// before fetching the first remote segment
 	/**
 	 * Main entry point.
 	 *
 	 * @param args
-	 *            the arguments : the operation (PING|MAP|SHUFFLE_REDUCE)
+	 *            the arguments : the operation
+	 *            (PING|PROBE|MAP|SHUFFLE_REDUCE|SKETCH|SERVE)
 	 *            followed by parameters.
 	 * @throws IOException
 	 *             if any I/O error occurred.
 	 */
 	public static void main(final String[] args) throws IOException {
 		if (args.length < 1) {
-			throw new IllegalArgumentException("Usage: Slave <command=[PING|MAP|SHUFFLE_REDUCE]> <param>");
+			throw new IllegalArgumentException("Usage: Slave <command=[PING|PROBE|MAP|SHUFFLE_REDUCE|SKETCH|SERVE]> <param>");
+		}
+		if (Trace.ENABLED) {
+			Trace.span("jvm", ManagementFactory.getRuntimeMXBean().getStartTime() * 1000);
 		}
 		new Slave(args[0], Arrays.asList(args).subList(1, args.length));
 		System.exit(0);
@@ -175,16 +77,40 @@ public class Slave {
 		if ("PING".equals(operation)) {
 			ping();
 			System.out.println("OK");
+			probe();
+		} else if ("PROBE".equals(operation)) {
+			System.out.println("OK");
+			probe();
 		} else if ("MAP".equals(operation)) {
 			map(params);
 		} else if ("SHUFFLE_REDUCE".equals(operation)) {
 			shuffleReduce(params);
+		} else if ("SKETCH".equals(operation)) {
+			sketch(params);
+		} else if ("SERVE".equals(operation)) {
+			serve(params);
 		}
 		if (DEBUG) System.err.println("Terminated.");
 	}
 
 	/**
-	 * Implements the map stage.
+	 * Returns the hexadecimal form of a binary key, which sorts as the key
+	 * does in {@link RecordWriter#KEY_ORDER}.
+	 *
+	 * @param bytes
+	 *            the binary form of the key.
+	 * @return the hexadecimal form, two lower case digits per byte.
+	 */
+	private static String hex(final byte[] bytes) {
+		final StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for (final byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Implements the map stage over a batch of split files.
 	 *
 	 * @param params
 	 *            the parameters.
@@ -192,28 +118,183 @@ public class Slave {
 	 *             if any I/O error occurred.
 	 */
 	private void map(final List<String> params) throws IOException {
-		if (params == null || params.size() != 1) {
-			throw new IllegalArgumentException("Usage: Slave MAP <Sx>");
+		if (params == null || params.size() < 3) {
+			throw new IllegalArgumentException("Usage: Slave MAP <job> <partitions> <Sx>[@<source>]...");
 		}
-		final Path SxFile = Paths.get(params.get(0));
+		mapBatch(Job.forName(params.get(0)), Integer.parseInt(params.get(1)), params.subList(2, params.size()));
+	}
+
+	/**
+	 * Maps a batch of split files with the specified job. The splits are
+	 * processed concurrently, one per core, and their values are combined in
+	 * a table per source shared by the whole batch; the source of a split is
+	 * the index of the input it comes from, given as "&lt;Sx&gt;@&lt;source&gt;"
+	 * (0 by default). The tables are then written to one UMx file named after
+	 * the first split, as binary records grouped by partition and sorted by
+	 * key within each partition, and each non-empty partition is reported as
+	 * a "&lt;partition&gt; &lt;UMx&gt;@&lt;offset&gt;+&lt;length&gt;" line.
+	 *
+	 * @param job
+	 *            the job.
+	 * @param partitions
+	 *            the number of partitions of the keys.
+	 * @param splits
+	 *            the split files, with their source.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private <K, V> void mapBatch(final Job<K, V> job, final int partitions, final List<String> splits)
+			throws IOException {
+		final Map<String, Integer> sources = new LinkedHashMap<>();
+		for (final String split : splits) {
+			final int separator = split.lastIndexOf('@');
+			if (separator < 0) {
+				sources.put(split, 0);
+			} else {
+				sources.put(split.substring(0, separator), Integer.valueOf(split.substring(separator + 1)));
+			}
+		}
+		final Path SxFile = Paths.get(sources.keySet().iterator().next());
 		final Path UMxFile = SxFile
 				.resolveSibling("UM" + SxFile.getName(SxFile.getNameCount() - 1).toString().substring("S".length()));
-		final List<String> lines = Files.readAllLines(SxFile, Charset.defaultCharset());
-		final List<String> words = new ArrayList<>();
-		for (final String line : lines) {
-			for ( String word : line.split("\\P{L}+")) {
-				word = word.toLowerCase();
-				if (word.length() > 1 && !REJECTED_WORDS.contains(word)) {
-					words.add(word + ": 1");
-					System.out.println(word + ":" + UMxFile);
+		final Map<Integer, ConcurrentMap<K, V>> tables = new TreeMap<>();
+		for (final Integer source : sources.values()) {
+			if (!tables.containsKey(source)) {
+				tables.put(source, new ConcurrentHashMap<K, V>());
+			}
+		}
+		final List<Callable<Void>> tasks = new ArrayList<>();
+		for (final Map.Entry<String, Integer> split : sources.entrySet()) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					mapSplit(job, Paths.get(split.getKey()), tables.get(split.getValue()));
+					return null;
+				}
+			});
+		}
+		runInParallel(tasks);
+		final long sortStart = Trace.now();
+		final List<SortedMap<byte[], SortedMap<Integer, byte[]>>> records = new ArrayList<>();
+		for (int p = 0; p < partitions; p++) {
+			records.add(new TreeMap<byte[], SortedMap<Integer, byte[]>>(RecordWriter.KEY_ORDER));
+		}
+		for (final Map.Entry<Integer, ConcurrentMap<K, V>> table : tables.entrySet()) {
+			for (final Map.Entry<K, V> entry : table.getValue().entrySet()) {
+				final byte[] key = job.getKeySerializer().serialize(entry.getKey());
+				final SortedMap<byte[], SortedMap<Integer, byte[]>> partition = records
+						.get(job.partition(key, partitions));
+				if (!partition.containsKey(key)) {
+					partition.put(key, new TreeMap<Integer, byte[]>());
+				}
+				partition.get(key).put(table.getKey(), job.getValueSerializer().serialize(entry.getValue()));
+			}
+		}
+		Trace.span("sort", sortStart);
+		final long writeStart = Trace.now();
+		final List<String> segments = new ArrayList<>();
+		try (RecordWriter writer = new RecordWriter(Files.newOutputStream(UMxFile))) {
+			for (int p = 0; p < partitions; p++) {
+				final long offset = writer.getPosition();
+				for (final Map.Entry<byte[], SortedMap<Integer, byte[]>> record : records.get(p).entrySet()) {
+					for (final Map.Entry<Integer, byte[]> value : record.getValue().entrySet()) {
+						writer.write(record.getKey(), value.getKey(), value.getValue());
+					}
+				}
+				if (writer.getPosition() > offset) {
+					segments.add(p + " " + UMxFile + "@" + offset + "+" + (writer.getPosition() - offset));
 				}
 			}
 		}
-		if (words.size() > 0) {
-			Files.write(UMxFile, words, Charset.defaultCharset(), new OpenOption[0]);
-			System.out.flush();
+		Trace.span("write " + UMxFile.getFileName(), writeStart);
+		for (final String segment : segments) {
+			System.out.println(segment);
 		}
-		return;
+		System.out.flush();
+	}
+
+	/**
+	 * Maps the lines of a split file into the table shared by the batch,
+	 * combining the values emitted for the same key.
+	 *
+	 * @param job
+	 *            the job.
+	 * @param SxFile
+	 *            the split file.
+	 * @param table
+	 *            the shared mapping of keys to their combined value.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private <K, V> void mapSplit(final Job<K, V> job, final Path SxFile, final ConcurrentMap<K, V> table)
+			throws IOException {
+		final BiFunction<V, V, V> combiner = new BiFunction<V, V, V>() {
+			@Override
+			public V apply(final V value1, final V value2) {
+				return job.getCombiner().combine(value1, value2);
+			}
+		};
+		final Emitter<K, V> emitter = new Emitter<K, V>() {
+			@Override
+			public void emit(final K key, final V value) {
+				table.merge(key, value, combiner);
+			}
+		};
+		final long readStart = Trace.now();
+		final List<String> lines = Files.readAllLines(SxFile, Charset.defaultCharset());
+		Trace.span("read " + SxFile.getFileName(), readStart);
+		final long mapStart = Trace.now();
+		for (final String line : lines) {
+			job.getMapper().map(line, emitter);
+		}
+		Trace.span("map " + SxFile.getFileName(), mapStart);
+	}
+
+	/**
+	 * Opens a segment of a map file, given as
+	 * "&lt;UMx&gt;@&lt;offset&gt;+&lt;length&gt;". A segment of a remote map
+	 * file, given as "//&lt;host&gt;:&lt;port&gt;/&lt;UMx&gt;@...", is fetched
+	 * first from the transfer service of the host that produced it into a copy
+	 * next to the RMx file. The copy is fetched by every reduce, since an
+	 * earlier job may have left a copy of another map file with the same name,
+	 * and is to be deleted once its reader is closed. The token of the job is
+	 * read from the standard input before the first fetch.
+	 *
+	 * @param segment
+	 *            the segment, either local or remote.
+	 * @param RMxFile
+	 *            the reduced map file being computed.
+	 * @param copies
+	 *            the local copies of the remote segments, to which the copy
+	 *            of this segment is added.
+	 * @return a reader over the records of the segment.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private RecordReader openSegment(final String segment, final Path RMxFile, final List<Path> copies)
+			throws IOException {
+		final int lengthStart = segment.lastIndexOf('+');
+		final int offsetStart = segment.lastIndexOf('@', lengthStart);
+		final String UMxFile = segment.substring(0, offsetStart);
+		final long offset = Long.parseLong(segment.substring(offsetStart + 1, lengthStart));
+		final long length = Long.parseLong(segment.substring(lengthStart + 1));
+		if (!UMxFile.startsWith("//")) {
+			return new RecordReader(Paths.get(UMxFile), offset, length);
+		}
+		final int portStart = UMxFile.indexOf(':');
+		final int nameStart = UMxFile.indexOf('/', portStart);
+		final String host = UMxFile.substring(2, portStart);
+		final int port = Integer.parseInt(UMxFile.substring(portStart + 1, nameStart));
+		final String name = UMxFile.substring(nameStart + 1);
+		final Path localFile = RMxFile.resolveSibling(host + "-" + name + "-" + offset);
+		copies.add(localFile);
+		final long fetchStart = Trace.now();
+		if (token == null) {
+			token = TransferService.readToken();
+		}
+		TransferService.fetch(host, port, token, name, offset, length, localFile);
+		Trace.span("fetch " + host + " " + name, fetchStart);
+		return new RecordReader(localFile, 0, length);
 	}
 
 	/**
@@ -228,7 +309,84 @@ public class Slave {
 	}
 
 	/**
-	 * Implements the shuffle/reduce stage.
+	 * Handles the probe operation; Reports the capacity of this host as a
+	 * "CAPACITY &lt;cores&gt; &lt;load-average&gt; &lt;free-memory&gt;" line.
+	 * The load average is negative when not available, the free memory is in
+	 * bytes.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void probe() throws IOException {
+		final int cores = Runtime.getRuntime().availableProcessors();
+		final double load = ManagementFactory.getOperatingSystemMXBean()
+				.getSystemLoadAverage();
+		long freeMemory = Runtime.getRuntime().maxMemory();
+		final Path meminfo = Paths.get("/proc/meminfo");
+		if (Files.isReadable(meminfo)) {
+			for (final String line : Files.readAllLines(meminfo, Charset.defaultCharset())) {
+				if (line.startsWith("MemAvailable:")) {
+					// Reported in kB.
+					freeMemory = Long.parseLong(line.replaceAll("\\D+", "")) * 1024;
+					break;
+				}
+			}
+		}
+		System.out.println("CAPACITY " + cores + " " + load + " " + freeMemory);
+	}
+
+	/**
+	 * Runs tasks concurrently, one per core at most, and waits for all of
+	 * them to complete.
+	 *
+	 * @param tasks
+	 *            the tasks.
+	 * @throws IOException
+	 *             if any task failed.
+	 */
+	private void runInParallel(final List<Callable<Void>> tasks) throws IOException {
+		final ExecutorService executor = Executors
+				.newFixedThreadPool(Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors())));
+		try {
+			final List<Future<Void>> futures = new ArrayList<>();
+			for (final Callable<Void> task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			for (final Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (final InterruptedException e) {
+			throw new IOException(e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Handles the serve operation; Runs the transfer service over a local
+	 * directory until the master stops it. The token of the job is read from
+	 * the standard input.
+	 *
+	 * @param params
+	 *            the parameters.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void serve(final List<String> params) throws IOException {
+		if (params == null || params.size() != 3) {
+			throw new IllegalArgumentException("Usage: Slave SERVE <host> <port> <dir>");
+		}
+		new TransferService(params.get(0), Integer.parseInt(params.get(1)), Paths.get(params.get(2)),
+				TransferService.readToken()).serve();
+	}
+
+	/**
+	 * Implements the shuffle/reduce stage over a partition.
 	 *
 	 * @param params
 	 *            the parameters.
@@ -236,39 +394,176 @@ public class Slave {
 	 *             if any I/O error occurred.
 	 */
 	private void shuffleReduce(final List<String> params) throws IOException {
-		if (params == null || params.size() < 3) {
-			throw new IllegalArgumentException("Usage: Slave SHUFFLE_REDUCE <key> <RMx> <UMx>...");
+		if (params == null || params.size() < 4) {
+			throw new IllegalArgumentException("Usage: Slave SHUFFLE_REDUCE <job> <RMx> <total> <segment>...");
 		}
-		final String key = params.get(0);
-		final String RMxFile = params.get(1);
-		final String SMxFile = RMxFile.replaceFirst("^R", "S");
+		shuffleReducePartition(Job.forName(params.get(0)), Paths.get(params.get(1)),
+				Boolean.parseBoolean(params.get(2)), params.subList(3, params.size()));
+	}
 
-		int count = 0;
-		final List<String> results = new ArrayList<>();
-		for (int i = 2; i < params.size(); i++) {
-			final String UMxFile = params.get(i);
-			final List<String> lines = Files.readAllLines(Paths.get(UMxFile), Charset.defaultCharset());
-			for (final String line : lines) {
-				final String[] fields = line.split(":");
-				final String word = fields[0].trim();
-				final String occurence = fields[1].trim();
-				if (word.equalsIgnoreCase(key)) {
-					results.add(key + ": 1");
-					count += Integer.valueOf(occurence);
+	/**
+	 * Reduces a partition with the specified job. The segments of the
+	 * partition are sorted by key, so they are merged in a single pass, and
+	 * the values of each key are reduced, source by source, as soon as all of
+	 * them are read; the values of all the sources may also be reduced
+	 * together, as the total of the inputs. The results of each source are
+	 * then sorted by decreasing rank, if the job ranks them, so that the
+	 * master only has to merge the partitions. The order is printed first, as
+	 * an "ORDER rank" or "ORDER key" line, then the results, formatted by the
+	 * job, as "&lt;source&gt; &lt;sort key&gt; &lt;line of the result&gt;"
+	 * lines: the sort key is the rank, or the binary form of the key in
+	 * hexadecimal, and the source of the total is "*". The remote segments are
+	 * fetched next to the RMx file.
+	 *
+	 * @param job
+	 *            the job.
+	 * @param RMxFile
+	 *            the reduced map file of the partition.
+	 * @param total
+	 *            whether to also reduce the values of all the sources
+	 *            together.
+	 * @param segments
+	 *            the segments of the map files holding the partition.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private <K, V> void shuffleReducePartition(final Job<K, V> job, final Path RMxFile, final boolean total,
+			final List<String> segments) throws IOException {
+		final PriorityQueue<RecordReader> queue = new PriorityQueue<>(segments.size(),
+				new Comparator<RecordReader>() {
+					@Override
+					public int compare(final RecordReader reader1, final RecordReader reader2) {
+						return RecordWriter.KEY_ORDER.compare(reader1.getKey(), reader2.getKey());
+					}
+				});
+		final Map<Integer, List<Map.Entry<K, V>>> results = new TreeMap<>();
+		final int[] source = new int[1]; // the source being reduced
+		final Emitter<K, V> emitter = new Emitter<K, V>() {
+			@Override
+			public void emit(final K key, final V value) {
+				if (!results.containsKey(source[0])) {
+					results.put(source[0], new ArrayList<Map.Entry<K, V>>());
+				}
+				results.get(source[0]).add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+			}
+		};
+		final long reduceStart = Trace.now();
+		final List<RecordReader> readers = new ArrayList<>();
+		final List<Path> copies = new ArrayList<>();
+		try {
+			for (final String segment : segments) {
+				final RecordReader reader = openSegment(segment, RMxFile, copies);
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
 				}
 			}
+			while (!queue.isEmpty()) {
+				final byte[] keyBytes = queue.peek().getKey();
+				final SortedMap<Integer, List<V>> values = new TreeMap<>();
+				while (!queue.isEmpty() && RecordWriter.KEY_ORDER.compare(queue.peek().getKey(), keyBytes) == 0) {
+					final RecordReader reader = queue.poll();
+					if (!values.containsKey(reader.getSource())) {
+						values.put(reader.getSource(), new ArrayList<V>());
+					}
+					values.get(reader.getSource()).add(job.getValueSerializer().deserialize(reader.getValue()));
+					if (reader.next()) {
+						queue.add(reader);
+					}
+				}
+				final K key = job.getKeySerializer().deserialize(keyBytes);
+				final List<V> allValues = new ArrayList<>();
+				for (final Map.Entry<Integer, List<V>> sourceValues : values.entrySet()) {
+					source[0] = sourceValues.getKey();
+					job.getReducer().reduce(key, sourceValues.getValue().iterator(), emitter);
+					if (total) {
+						allValues.addAll(sourceValues.getValue());
+					}
+				}
+				if (total) {
+					source[0] = TOTAL_SOURCE;
+					job.getReducer().reduce(key, allValues.iterator(), emitter);
+				}
+			}
+		} finally {
+			for (final RecordReader reader : readers) {
+				reader.close();
+			}
+			for (final Path copy : copies) {
+				Files.deleteIfExists(copy);
+			}
+		}
+		Trace.span("reduce", reduceStart);
+		final Ranker<V> ranker = job.getRanker();
+		if (ranker != null) {
+			final long sortStart = Trace.now();
+			for (final List<Map.Entry<K, V>> sourceResults : results.values()) {
+				// Stable, so that equal ranks stay in key order.
+				Collections.sort(sourceResults, new Comparator<Map.Entry<K, V>>() {
+					@Override
+					public int compare(final Map.Entry<K, V> result1, final Map.Entry<K, V> result2) {
+						return Long.compare(ranker.rank(result2.getValue()), ranker.rank(result1.getValue()));
+					}
+				});
+			}
+			Trace.span("sort", sortStart);
+		}
+		final long outputStart = Trace.now();
+		System.out.println("ORDER " + (ranker != null ? "rank" : "key"));
+		for (final Map.Entry<Integer, List<Map.Entry<K, V>>> sourceResults : results.entrySet()) {
+			final String prefix = (sourceResults.getKey() == TOTAL_SOURCE ? "*" : sourceResults.getKey()) + " ";
+			for (final Map.Entry<K, V> result : sourceResults.getValue()) {
+				final String sortKey = ranker != null ? String.valueOf(ranker.rank(result.getValue()))
+						: hex(job.getKeySerializer().serialize(result.getKey()));
+				System.out.println(prefix + sortKey + " " + job.getFormatter().format(result.getKey(), result.getValue()));
+			}
+		}
+		Trace.span("output", outputStart);
+		System.out.flush();
+	}
+
+	/**
+	 * Implements the sketch stage of the approximate mode over a batch of
+	 * split files: each split is summarized concurrently, and the merged
+	 * {@link WordSketch} of the batch is printed.
+	 *
+	 * @param params
+	 *            the parameters.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void sketch(final List<String> params) throws IOException {
+		if (params == null || params.size() < 1) {
+			throw new IllegalArgumentException("Usage: Slave SKETCH <Sx>...");
 		}
-		if (results.size() > 0 && SMxFile != null) {
-			Files.write(Paths.get(SMxFile), results, Charset.defaultCharset(), StandardOpenOption.CREATE,
-					StandardOpenOption.TRUNCATE_EXISTING);
+		final List<WordSketch> sketches = new ArrayList<>();
+		final List<Callable<Void>> tasks = new ArrayList<>();
+		for (final String split : params) {
+			final WordSketch sketch = new WordSketch();
+			sketches.add(sketch);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					final long readStart = Trace.now();
+					final List<String> lines = Files.readAllLines(Paths.get(split), Charset.defaultCharset());
+					Trace.span("read " + Paths.get(split).getFileName(), readStart);
+					final long sketchStart = Trace.now();
+					for (final String line : lines) {
+						for (final String word : WordCount.words(line)) {
+							sketch.add(word);
+						}
+					}
+					Trace.span("sketch " + Paths.get(split).getFileName(), sketchStart);
+					return null;
+				}
+			});
 		}
-		final String output = key + ":" + count;
-		if (output.length() > 0) {
-			Files.write(Paths.get(RMxFile), output.getBytes(Charset.defaultCharset()), StandardOpenOption.CREATE,
-					StandardOpenOption.TRUNCATE_EXISTING);
+		runInParallel(tasks);
+		for (final WordSketch sketch : sketches.subList(1, sketches.size())) {
+			sketches.get(0).merge(sketch);
 		}
-		System.out.println(output);
-		return;
+		sketches.get(0).print(System.out);
+		System.out.flush();
 	}
 
 }
@@ -0,0 +1,297 @@
+package shavadoop;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Extracts the words of a line through a pipeline of filters: Unicode
+ * normalization of the line, tokenization into sequences of letters, lower
+ * case, minimum length and stopwords. The pipeline is configured by the
+ * following properties, which the master forwards to the slaves:
+ * <ul>
+ * <li>shavadoop.filter.normalization: "none" (the default), "nfc", "nfkc", or
+ * "fold" to also drop the accents;</li>
+ * <li>shavadoop.filter.minlength: the minimum number of chars of a word (2 by
+ * default);</li>
+ * <li>shavadoop.filter.stopwords: a comma-separated list of stopword lists,
+ * either a language bundled with the slave ("fr", the default, or "en") or a
+ * stopword file on the slave hosts, in UTF-8 with one word per line and '#'
+ * starting a comment line; the entries of several words are ignored.</li>
+ * </ul>
+ * The words are lower-cased as {@link String#toLowerCase(Locale)} does in the
+ * root locale, so that, by default, they are those of the former
+ * "\\P{L}+" split of the lines.
+ *
+ * The stopwords are normalized like the words and compiled once into an
+ * immutable open addressing table over a single pool of chars, which the
+ * tokenizer probes straight from its buffer: only the words kept are turned
+ * into strings.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+final class TokenFilter {
+	public static final String NORMALIZATION = System.getProperty("shavadoop.filter.normalization", "none"); // the normalization of the lines
+	public static final int MIN_LENGTH = Integer.getInteger("shavadoop.filter.minlength", 2); // the minimum length of a word
+	public static final String STOPWORDS = System.getProperty("shavadoop.filter.stopwords", "fr"); // the stopword lists
+
+	/**
+	 * Compiles the filter pipeline configured by the properties.
+	 *
+	 * @return the filter pipeline.
+	 * @throws IOException
+	 *             if any I/O error occurred while loading the stopwords.
+	 */
+	static TokenFilter compile() throws IOException {
+		final Normalizer.Form form;
+		switch (NORMALIZATION) {
+		case "none":
+			form = null;
+			break;
+		case "nfc":
+			form = Normalizer.Form.NFC;
+			break;
+		case "nfkc":
+			form = Normalizer.Form.NFKC;
+			break;
+		case "fold":
+			form = Normalizer.Form.NFKD;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown normalization: " + NORMALIZATION);
+		}
+		final boolean fold = "fold".equals(NORMALIZATION);
+		// The stopwords go through the same filters as the input.
+		final TokenFilter tokenizer = new TokenFilter(form, fold, MIN_LENGTH, new LinkedHashSet<String>());
+		final Set<String> stopwords = new LinkedHashSet<>();
+		for (final String list : STOPWORDS.split(",")) {
+			if (!list.trim().isEmpty()) {
+				for (final String line : readStopwords(list.trim())) {
+					if (line.startsWith("#")) {
+						continue;
+					}
+					final List<String> words = tokenizer.words(line);
+					if (words.size() > 1) {
+						System.err.println("Ignoring stopword entry \"" + line + "\" of " + list.trim()
+								+ ": it holds several words " + words + ".");
+					} else {
+						stopwords.addAll(words);
+					}
+				}
+			}
+		}
+		return new TokenFilter(form, fold, MIN_LENGTH, stopwords);
+	}
+
+	/**
+	 * Hashes a sequence of chars, as {@link String#hashCode()} does, with the
+	 * high bits spread over the low ones.
+	 *
+	 * @param chars
+	 *            the buffer holding the chars.
+	 * @param start
+	 *            the start of the chars.
+	 * @param length
+	 *            the number of chars.
+	 * @return the hash.
+	 */
+	private static int hash(final char[] chars, final int start, final int length) {
+		int h = 0;
+		for (int i = start; i < start + length; i++) {
+			h = 31 * h + chars[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns whether a code point is a combining mark.
+	 *
+	 * @param c
+	 *            the code point.
+	 * @return true if the code point is a combining mark, false otherwise.
+	 */
+	private static boolean isMark(final int c) {
+		final int type = Character.getType(c);
+		return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+				|| type == Character.ENCLOSING_MARK;
+	}
+
+	/**
+	 * Reads the lines of a stopword list.
+	 *
+	 * @param list
+	 *            the language of a bundled list, or the path of a stopword
+	 *            file.
+	 * @return the lines of the list.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private static List<String> readStopwords(final String list) throws IOException {
+		final InputStream bundled = TokenFilter.class.getResourceAsStream("stopwords/" + list + ".txt");
+		if (bundled == null) {
+			return Files.readAllLines(Paths.get(list), StandardCharsets.UTF_8);
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(bundled, StandardCharsets.UTF_8))) {
+			final List<String> lines = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+			return lines;
+		}
+	}
+
+	private final boolean fold; // whether to drop the combining marks
+
+	private final Normalizer.Form form; // the normalization form, or null
+
+	private final int minLength; // the minimum length of a word
+
+	private final char[] pool; // the chars of all the stopwords
+
+	private final int[] offsets; // the start of each stopword in the pool,
+									// followed by the end of the pool
+
+	private final int[] slots; // the open addressing table, filled up to half
+								// its capacity at most: the index of a
+								// stopword plus one, or 0 if free
+
+	/**
+	 * Creates an instance of TokenFilter, compiling the stopwords.
+	 *
+	 * @param form
+	 *            the normalization form of the lines, or null.
+	 * @param fold
+	 *            whether to drop the combining marks.
+	 * @param minLength
+	 *            the minimum length of a word.
+	 * @param stopwords
+	 *            the distinct stopwords, already filtered.
+	 */
+	private TokenFilter(final Normalizer.Form form, final boolean fold, final int minLength,
+			final Set<String> stopwords) {
+		this.form = form;
+		this.fold = fold;
+		this.minLength = minLength;
+		int size = 0;
+		for (final String stopword : stopwords) {
+			size += stopword.length();
+		}
+		pool = new char[size];
+		offsets = new int[stopwords.size() + 1];
+		slots = new int[Integer.highestOneBit(Math.max(1, stopwords.size() * 2 - 1)) << 1];
+		int index = 0;
+		for (final String stopword : stopwords) {
+			stopword.getChars(0, stopword.length(), pool, offsets[index]);
+			offsets[index + 1] = offsets[index] + stopword.length();
+			int slot = hash(pool, offsets[index], stopword.length()) & (slots.length - 1);
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & (slots.length - 1);
+			}
+			slots[slot] = ++index;
+		}
+	}
+
+	/**
+	 * Tells whether a sequence of chars is a stopword.
+	 *
+	 * @param chars
+	 *            the buffer holding the chars.
+	 * @param start
+	 *            the start of the chars.
+	 * @param length
+	 *            the number of chars.
+	 * @return true if the chars are those of a stopword, false otherwise.
+	 */
+	boolean isStopword(final char[] chars, final int start, final int length) {
+		int slot = hash(chars, start, length) & (slots.length - 1);
+		while (slots[slot] != 0) {
+			final int index = slots[slot] - 1;
+			if (offsets[index + 1] - offsets[index] == length) {
+				int i = 0;
+				while (i < length && pool[offsets[index] + i] == chars[start + i]) {
+					i++;
+				}
+				if (i == length) {
+					return true;
+				}
+			}
+			slot = (slot + 1) & (slots.length - 1);
+		}
+		return false;
+	}
+
+	/**
+	 * Extracts the words of a line: the lower-cased sequences of letters of
+	 * the normalized line, at least as long as the minimum length, except the
+	 * stopwords. The letters are lower-cased one by one, unless the sequence
+	 * holds a capital sigma, whose lower case depends on its position, or a
+	 * capital dotted I, whose lower case takes two chars: the whole sequence
+	 * is then lower-cased as a string.
+	 *
+	 * @param line
+	 *            the line.
+	 * @return the words.
+	 */
+	List<String> words(final String line) {
+		final List<String> words = new ArrayList<>();
+		final String text = normalize(line);
+		final char[] letters = new char[text.length()];
+		final char[] token = new char[2 * text.length()];
+		int i = 0;
+		while (i < text.length()) {
+			int count = 0;
+			int length = 0;
+			boolean special = false;
+			while (i < text.length()) {
+				final int c = text.codePointAt(i);
+				if (Character.isLetter(c)) {
+					count += Character.toChars(c, letters, count);
+					length += Character.toChars(Character.toLowerCase(c), token, length);
+					special |= c == '\u03A3' || c == '\u0130';
+				} else if (!fold || !isMark(c)) {
+					break;
+				}
+				i += Character.charCount(c);
+			}
+			if (special) {
+				final String lower = new String(letters, 0, count).toLowerCase(Locale.ROOT);
+				length = lower.length();
+				lower.getChars(0, length, token, 0);
+			}
+			if (length >= minLength && !isStopword(token, 0, length)) {
+				words.add(new String(token, 0, length));
+			}
+			if (i < text.length()) {
+				i += Character.charCount(text.codePointAt(i));
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Normalizes a line, unless it is already normalized.
+	 *
+	 * @param line
+	 *            the line.
+	 * @return the normalized line.
+	 */
+	private String normalize(final String line) {
+		if (form == null || Normalizer.isNormalized(line, form)) {
+			return line;
+		}
+		return Normalizer.normalize(line, form);
+	}
+
+}
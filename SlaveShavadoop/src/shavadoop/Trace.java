@@ -0,0 +1,48 @@
+package shavadoop;
+
+/**
+ * Reports the phases of a slave command to the master as spans, printed as
+ * "TRACE &lt;start&gt; &lt;duration&gt; &lt;name&gt;" lines along with the
+ * output of the command, in microseconds since the epoch on the clock of the
+ * slave host. The master removes them from the output and exports them in the
+ * timeline of the job. The spans are only printed if the master exports the
+ * timeline, and so forwards the "shavadoop.trace" property.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+final class Trace {
+	public static final boolean ENABLED = Boolean.getBoolean("shavadoop.trace"); // whether to report the spans
+	private static final long EPOCH_OFFSET = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000; // the offset from the monotonic clock to the epoch, in microseconds
+
+	/**
+	 * Returns the current time.
+	 *
+	 * @return the current time, in microseconds since the epoch.
+	 */
+	static long now() {
+		return EPOCH_OFFSET + System.nanoTime() / 1000;
+	}
+
+	/**
+	 * Reports a span ending now, if the spans are reported.
+	 *
+	 * @param name
+	 *            the name of the span.
+	 * @param start
+	 *            the start of the span, as returned by {@link #now()}.
+	 */
+	static void span(final String name, final long start) {
+		if (!ENABLED) {
+			return;
+		}
+		System.out.println("TRACE " + start + " " + Math.max(0, now() - start) + " " + name);
+	}
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private Trace() {
+	}
+
+}
@@ -0,0 +1,386 @@
+package shavadoop;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Moves files between hosts which do not share a filesystem.
+ *
+ * A slave host runs the service (the "SERVE" command) over a local directory:
+ * the master pushes the split files to it, and the reducers of other hosts
+ * pull the map files from it. File contents are moved between the file and
+ * socket channels with {@link FileChannel#transferTo} and
+ * {@link FileChannel#transferFrom}, so that they are not copied through the
+ * heap, and are verified against a CRC32 checksum.
+ *
+ * The service only listens on the address of the host name the master uses
+ * to reach it, and only serves the requests carrying the token of the job,
+ * which the master gives to the slaves on their standard input rather than on
+ * their command line, where the other users of the host could read it.
+ *
+ * Requests start with the token, then a one byte operation: 'P' (put)
+ * followed by the file name, length and checksum, then the content; 'G' (get)
+ * followed by the file name, offset and length (negative for the whole file),
+ * answered with the length and checksum, then the content; 'Q' (quit). Every
+ * request is answered with a status byte first; the requests with another
+ * token are answered with a failure.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class TransferService {
+	public static final long IDLE_TIMEOUT = 10 * 60 * 1000; // the delay after
+															// which an idle
+															// service stops, in
+															// ms
+	public static final int TOKEN_LENGTH = 32; // the length of the token of
+												// the job, in ASCII characters
+	private static final byte OK = 1;
+	private static final byte FAILED = 0;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Computes the CRC32 checksum of a region of a file, through a mapping of
+	 * the file rather than a copy of its content.
+	 *
+	 * @param channel
+	 *            the file channel.
+	 * @param offset
+	 *            the offset of the region.
+	 * @param length
+	 *            the length of the region.
+	 * @return the checksum.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	static long checksum(final FileChannel channel, final long offset, final long length) throws IOException {
+		final CRC32 crc = new CRC32();
+		for (long position = offset; position < offset + length; position += Integer.MAX_VALUE) {
+			crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.min(Integer.MAX_VALUE, offset + length - position)));
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Fetches a region of a file from the service of a remote host.
+	 *
+	 * @param host
+	 *            the remote host.
+	 * @param port
+	 *            the port of its service.
+	 * @param token
+	 *            the token of the job.
+	 * @param name
+	 *            the name of the file in the directory served by the remote
+	 *            host.
+	 * @param offset
+	 *            the offset of the region.
+	 * @param length
+	 *            the length of the region, or a negative value for the rest of
+	 *            the file.
+	 * @param target
+	 *            the local file to write the region to; it only appears once
+	 *            complete and verified.
+	 * @throws IOException
+	 *             if any I/O error occurred or the checksum did not match.
+	 */
+	static void fetch(final String host, final int port, final String token, final String name, final long offset,
+			final long length, final Path target) throws IOException {
+		final Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(),
+				".part");
+		try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port));
+				FileChannel file = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			final byte[] nameBytes = name.getBytes(UTF8);
+			final ByteBuffer request = ByteBuffer.allocate(TOKEN_LENGTH + 1 + 2 + nameBytes.length + 8 + 8);
+			request.put(token.getBytes(UTF8)).put((byte) 'G').putShort((short) nameBytes.length).put(nameBytes).putLong(offset).putLong(length);
+			request.flip();
+			writeFully(socket, request);
+			final ByteBuffer response = readFully(socket, 1 + 8 + 8);
+			if (response.get() != OK) {
+				throw new IOException("Cannot fetch " + name + " from " + host);
+			}
+			final long size = response.getLong();
+			final long checksum = response.getLong();
+			receive(socket, file, size);
+			if (checksum(file, 0, size) != checksum) {
+				throw new IOException("Checksum mismatch on " + name + " from " + host);
+			}
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads exactly the specified number of bytes from a channel.
+	 *
+	 * @param channel
+	 *            the channel.
+	 * @param size
+	 *            the number of bytes.
+	 * @return the bytes read, ready to be decoded.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private static ByteBuffer readFully(final ReadableByteChannel channel, final int size) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads a file name from a channel.
+	 *
+	 * @param channel
+	 *            the channel.
+	 * @return the file name.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private static String readName(final ReadableByteChannel channel) throws IOException {
+		final int length = readFully(channel, 2).getShort() & 0xFFFF;
+		return new String(readFully(channel, length).array(), UTF8);
+	}
+
+	/**
+	 * Reads the token of the job, given by the master as the first line of the
+	 * standard input.
+	 *
+	 * @return the token.
+	 * @throws IOException
+	 *             if any I/O error occurred or no token was given.
+	 */
+	static String readToken() throws IOException {
+		final String token = new BufferedReader(new InputStreamReader(System.in, UTF8)).readLine();
+		if (token == null || token.length() != TOKEN_LENGTH) {
+			throw new IOException("No transfer token on the standard input");
+		}
+		return token;
+	}
+
+	/**
+	 * Receives the specified number of bytes from a socket into a file.
+	 *
+	 * @param socket
+	 *            the socket channel.
+	 * @param file
+	 *            the file channel.
+	 * @param size
+	 *            the number of bytes.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private static void receive(final SocketChannel socket, final FileChannel file, final long size)
+			throws IOException {
+		long position = 0;
+		while (position < size) {
+			final long count = file.transferFrom(socket, position, size - position);
+			if (count <= 0) {
+				throw new EOFException();
+			}
+			position += count;
+		}
+	}
+
+	/**
+	 * Sends a region of a file to a channel.
+	 *
+	 * @param file
+	 *            the file channel.
+	 * @param offset
+	 *            the offset of the region.
+	 * @param length
+	 *            the length of the region.
+	 * @param target
+	 *            the target channel.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private static void send(final FileChannel file, final long offset, final long length,
+			final WritableByteChannel target) throws IOException {
+		long position = offset;
+		while (position < offset + length) {
+			position += file.transferTo(position, offset + length - position, target);
+		}
+	}
+
+	/**
+	 * Writes the whole content of a buffer to a channel.
+	 *
+	 * @param channel
+	 *            the channel.
+	 * @param buffer
+	 *            the buffer.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private static void writeFully(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private final Path dir; // the directory served
+
+	private final ServerSocketChannel server; // the listening channel
+
+	private final byte[] token; // the token required in every request
+
+	private volatile boolean stopped = false; // whether a quit request was
+												// received
+
+	/**
+	 * Creates an instance of TransferService.
+	 *
+	 * @param host
+	 *            the name of this host, whose address to listen on.
+	 * @param port
+	 *            the port to listen to.
+	 * @param dir
+	 *            the directory served.
+	 * @param token
+	 *            the token of the job.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	TransferService(final String host, final int port, final Path dir, final String token) throws IOException {
+		this.dir = dir;
+		this.token = token.getBytes(UTF8);
+		Files.createDirectories(dir);
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(InetAddress.getByName(host), port));
+	}
+
+	/**
+	 * Handles a single request.
+	 *
+	 * @param socket
+	 *            the socket channel of the request.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void handle(final SocketChannel socket) throws IOException {
+		final ByteBuffer request = ByteBuffer.allocate(TOKEN_LENGTH + 1);
+		if (socket.read(request) < 0) {
+			return; // a mere connection check
+		}
+		while (request.hasRemaining()) {
+			if (socket.read(request) < 0) {
+				throw new EOFException();
+			}
+		}
+		if (!MessageDigest.isEqual(Arrays.copyOf(request.array(), TOKEN_LENGTH), token)) {
+			System.err.println("Rejected a request from " + socket.getRemoteAddress() + " without the job token.");
+			writeFully(socket, ByteBuffer.wrap(new byte[] { FAILED }));
+			return;
+		}
+		final byte operation = request.get(TOKEN_LENGTH);
+		if (operation == 'P') {
+			final Path target = dir.resolve(Paths.get(readName(socket)).getFileName());
+			final ByteBuffer header = readFully(socket, 8 + 8);
+			final long size = header.getLong();
+			final long checksum = header.getLong();
+			final Path temp = Files.createTempFile(dir, target.getFileName().toString(), ".part");
+			boolean verified;
+			try (FileChannel file = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				receive(socket, file, size);
+				verified = checksum(file, 0, size) == checksum;
+			}
+			if (verified) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} else {
+				Files.delete(temp);
+			}
+			writeFully(socket, ByteBuffer.wrap(new byte[] { verified ? OK : FAILED }));
+		} else if (operation == 'G') {
+			final Path source = dir.resolve(Paths.get(readName(socket)).getFileName());
+			final ByteBuffer header = readFully(socket, 8 + 8);
+			final long offset = header.getLong();
+			final long length = header.getLong();
+			if (!Files.isRegularFile(source)) {
+				writeFully(socket, ByteBuffer.wrap(new byte[] { FAILED }));
+				return;
+			}
+			try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+				final long size = length < 0 ? file.size() - offset : length;
+				final ByteBuffer response = ByteBuffer.allocate(1 + 8 + 8);
+				response.put(OK).putLong(size).putLong(checksum(file, offset, size));
+				response.flip();
+				writeFully(socket, response);
+				send(file, offset, size, socket);
+			}
+		} else if (operation == 'Q') {
+			stopped = true;
+			writeFully(socket, ByteBuffer.wrap(new byte[] { OK }));
+			server.close();
+		}
+	}
+
+	/**
+	 * Serves requests until a quit request is received or the service stays
+	 * idle for too long. Each request is handled in its own thread.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void serve() throws IOException {
+		final ServerSocket serverSocket = server.socket();
+		serverSocket.setSoTimeout((int) IDLE_TIMEOUT);
+		try {
+			while (!stopped) {
+				final Socket socket = serverSocket.accept();
+				final Thread thread = new Thread() {
+					@Override
+					public void run() {
+						try (SocketChannel channel = socket.getChannel()) {
+							handle(channel);
+						} catch (final IOException e) {
+							e.printStackTrace();
+						}
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (final SocketTimeoutException e) {
+			System.err.println("Transfer service idle, stopping.");
+		} catch (final IOException e) {
+			if (!stopped) {
+				throw e;
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package shavadoop;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Implements the word count job: counts the occurrences of each word of the
+ * input, ignoring single letters and the stopwords (by default, the most
+ * common French words).
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class WordCount implements Mapper<String, Long>, Combiner<Long>, Reducer<String, Long>, Formatter<String, Long>,
+		Ranker<Long> {
+	private final static TokenFilter FILTER; // the filters of the words
+
+	static {
+		try {
+			FILTER = TokenFilter.compile();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Creates the word count job, whose result is sorted by decreasing count
+	 * and formatted as "&lt;word&gt;:&lt;count&gt;" lines.
+	 *
+	 * @return the job.
+	 */
+	static Job<String, Long> createJob() {
+		final WordCount wordCount = new WordCount();
+		return new Job<>("wordcount", wordCount, wordCount, wordCount, Serializers.STRING, Serializers.LONG,
+				wordCount, wordCount);
+	}
+
+	/**
+	 * Extracts the counted words of a line, through the filters configured
+	 * for the slave.
+	 *
+	 * @param line
+	 *            the line.
+	 * @return the words.
+	 * @see TokenFilter
+	 */
+	static List<String> words(final String line) {
+		return FILTER.words(line);
+	}
+
+	@Override
+	public Long combine(final Long value1, final Long value2) {
+		return value1 + value2;
+	}
+
+	@Override
+	public String format(final String key, final Long value) {
+		return key + ":" + value;
+	}
+
+	@Override
+	public void map(final String line, final Emitter<String, Long> output) {
+		for (final String word : words(line)) {
+			output.emit(word, 1L);
+		}
+	}
+
+	@Override
+	public long rank(final Long value) {
+		return value;
+	}
+
+	@Override
+	public void reduce(final String key, final Iterator<Long> values, final Emitter<String, Long> output) {
+		long count = 0;
+		while (values.hasNext()) {
+			count += values.next();
+		}
+		output.emit(key, count);
+	}
+
+}
@@ -0,0 +1,179 @@
+package shavadoop;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summarizes the words of a split in constant space, for the approximate job
+ * mode: a Count-Min sketch bounds the count of any word, a Misra-Gries summary
+ * keeps the heavy hitters and a HyperLogLog estimates the number of distinct
+ * words. All three are mergeable, so that the master can combine the sketches
+ * of all the splits without any shuffle.
+ *
+ * @author S.Cohard et T.Guzelbodur
+ *
+ */
+class WordSketch {
+	public static final int CMS_DEPTH = 4; // the number of rows of the
+											// Count-Min sketch
+	public static final int CMS_WIDTH = 8192; // the number of counters per row
+	public static final int HEAVY_HITTERS = 1024; // the number of counters of
+													// the Misra-Gries summary
+	public static final int HLL_PRECISION = 12; // the number of hash bits
+												// indexing the HyperLogLog
+												// registers
+	public static final String HASH_PROBE = "shavadoop"; // the word whose hash is printed, for the master to check its own
+
+	/**
+	 * Hashes a word on 64 bits (FNV-1a followed by the MurmurHash3 finalizer).
+	 * The master computes the same hash to query the merged Count-Min sketch.
+	 *
+	 * @param word
+	 *            the word.
+	 * @return the hash.
+	 */
+	static long hash(final String word) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < word.length(); i++) {
+			h ^= word.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private final long[][] cms = new long[CMS_DEPTH][CMS_WIDTH]; // the Count-Min sketch
+
+	private final byte[] hll = new byte[1 << HLL_PRECISION]; // the HyperLogLog registers
+
+	private final Map<String, Long> heavyHitters = new HashMap<>(); // the Misra-Gries counters
+
+	private long total = 0; // the number of words added
+
+	/**
+	 * Adds an occurrence of a word.
+	 *
+	 * @param word
+	 *            the word.
+	 */
+	void add(final String word) {
+		final long h = hash(word);
+		total++;
+		// Count-Min: one counter per row, chosen by double hashing.
+		final int h1 = (int) h;
+		final int h2 = (int) (h >>> 32);
+		for (int row = 0; row < CMS_DEPTH; row++) {
+			cms[row][((h1 + row * h2) & Integer.MAX_VALUE) % CMS_WIDTH]++;
+		}
+		// HyperLogLog: the register indexed by the top bits keeps the longest
+		// run of leading zeros seen in the remaining bits.
+		final int register = (int) (h >>> (64 - HLL_PRECISION));
+		final byte rank = (byte) (Long.numberOfLeadingZeros(h << HLL_PRECISION | 1L << (HLL_PRECISION - 1)) + 1);
+		if (rank > hll[register]) {
+			hll[register] = rank;
+		}
+		// Misra-Gries: when all the counters are taken, decrement them all.
+		final Long count = heavyHitters.get(word);
+		if (count != null) {
+			heavyHitters.put(word, count + 1);
+		} else if (heavyHitters.size() < HEAVY_HITTERS) {
+			heavyHitters.put(word, 1L);
+		} else {
+			decrementHeavyHitters(1);
+		}
+	}
+
+	/**
+	 * Decrements all the Misra-Gries counters, dropping those which reach zero.
+	 *
+	 * @param amount
+	 *            the amount to decrement by.
+	 */
+	private void decrementHeavyHitters(final long amount) {
+		final Iterator<Map.Entry<String, Long>> iter = heavyHitters.entrySet().iterator();
+		while (iter.hasNext()) {
+			final Map.Entry<String, Long> entry = iter.next();
+			if (entry.getValue() <= amount) {
+				iter.remove();
+			} else {
+				entry.setValue(entry.getValue() - amount);
+			}
+		}
+	}
+
+	/**
+	 * Merges another sketch into this one.
+	 *
+	 * @param other
+	 *            the other sketch.
+	 */
+	void merge(final WordSketch other) {
+		total += other.total;
+		for (int row = 0; row < CMS_DEPTH; row++) {
+			for (int i = 0; i < CMS_WIDTH; i++) {
+				cms[row][i] += other.cms[row][i];
+			}
+		}
+		for (int i = 0; i < hll.length; i++) {
+			if (other.hll[i] > hll[i]) {
+				hll[i] = other.hll[i];
+			}
+		}
+		for (final Map.Entry<String, Long> entry : other.heavyHitters.entrySet()) {
+			final Long count = heavyHitters.get(entry.getKey());
+			heavyHitters.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+		}
+		// Keep the size bounded: subtract the count of the first counter
+		// exceeding the capacity.
+		if (heavyHitters.size() > HEAVY_HITTERS) {
+			final List<Long> counts = new ArrayList<>(heavyHitters.values());
+			Collections.sort(counts, Collections.reverseOrder());
+			decrementHeavyHitters(counts.get(HEAVY_HITTERS));
+		}
+	}
+
+	/**
+	 * Prints the sketch, as "PARAMS &lt;depth&gt; &lt;width&gt; &lt;heavy
+	 * hitters&gt; &lt;precision&gt; &lt;hash of the probe word&gt;" (for the
+	 * master to check that it merges the sketches the same way), "TOTAL
+	 * &lt;n&gt;", "CMS &lt;row&gt;
+	 * &lt;index&gt;:&lt;count&gt;..." (non-zero counters only), "HLL
+	 * &lt;registers as hex digits&gt;" and "HH &lt;word&gt; &lt;count&gt;"
+	 * lines.
+	 *
+	 * @param out
+	 *            the stream to print to.
+	 */
+	void print(final PrintStream out) {
+		out.println("PARAMS " + CMS_DEPTH + " " + CMS_WIDTH + " " + HEAVY_HITTERS + " " + HLL_PRECISION + " "
+				+ Long.toHexString(hash(HASH_PROBE)));
+		out.println("TOTAL " + total);
+		for (int row = 0; row < CMS_DEPTH; row++) {
+			final StringBuilder line = new StringBuilder("CMS ").append(row);
+			for (int i = 0; i < CMS_WIDTH; i++) {
+				if (cms[row][i] != 0) {
+					line.append(' ').append(i).append(':').append(cms[row][i]);
+				}
+			}
+			out.println(line);
+		}
+		final StringBuilder line = new StringBuilder("HLL ");
+		for (final byte register : hll) {
+			line.append(Character.forDigit(register >> 4, 16)).append(Character.forDigit(register & 0xF, 16));
+		}
+		out.println(line);
+		for (final Map.Entry<String, Long> entry : heavyHitters.entrySet()) {
+			out.println("HH " + entry.getKey() + " " + entry.getValue());
+		}
+	}
+
+}
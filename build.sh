@@ -0,0 +1,12 @@
+#!/bin/sh
+# Builds MasterShavadoop.jar and SlaveShavadoop.jar from the sources, the
+# slave jar holding the bundled stopword lists.
+set -e
+cd "$(dirname "$0")"
+rm -rf build
+mkdir -p build/master build/slave
+javac -encoding UTF-8 -d build/master MasterShavadoop/src/shavadoop/*.java
+javac -encoding UTF-8 -d build/slave SlaveShavadoop/src/shavadoop/*.java
+cp -r SlaveShavadoop/src/shavadoop/stopwords build/slave/shavadoop/
+jar cfe MasterShavadoop.jar shavadoop.Master -C build/master .
+jar cfe SlaveShavadoop.jar shavadoop.Slave -C build/slave .